@@ -0,0 +1,89 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Dispersion math of the localQC table loader, by batches of rows as BinnedProfile.loadLocalQCs computes it
+ * (LocalQCBatch): three samplings, and five replicates of each sampling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class DispersionBenchmark {
+    private static final int N_BINS = 100000;
+
+    // Intensity, then 90%, 70% and 50% samplings (one or five replicates each)
+    private int[][] bins;
+    private int[][] bins5;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        this.bins = new int[N_BINS][];
+        this.bins5 = new int[N_BINS][];
+
+        for (int i = 0; i < N_BINS; i++) {
+            int intensity = 1 + random.nextInt(200);
+            this.bins[i] = new int[]{intensity, sample(random, intensity, 90), sample(random, intensity, 70), sample(random, intensity, 50)};
+            this.bins5[i] = new int[16];
+            this.bins5[i][0] = intensity;
+
+            for (int j = 0; j < 15; j++)
+                this.bins5[i][1+j] = sample(random, intensity, 90 - j / 5 * 20);
+        }
+    }
+
+    private static int sample(SplittableRandom random, int intensity, int percent) {
+        int k = 0;
+        for (int i = 0; i < intensity; i++) {
+            if (random.nextInt(100) < percent)
+                k++;
+        }
+        return k;
+    }
+
+    @Benchmark
+    public int threeSamplings() {
+        Section section = new Section(N_BINS * 500, 50);
+        LocalQCBatch batch = new LocalQCBatch(1, LocalQCBatch.DEFAULT_SIZE);
+
+        for (int i = 0; i < N_BINS; i++) {
+            int[] bin = this.bins[i];
+
+            for (int j = 0; j < 3; j++)
+                batch.setSampling(j, bin[1+j]);
+
+            batch.add(section, i * 500, bin[0]);
+        }
+
+        batch.flush();
+        return section.getLocalQCs().size();
+    }
+
+    @Benchmark
+    public int fiveReplicates() {
+        Section section = new Section(N_BINS * 500, 50);
+        LocalQCBatch batch = new LocalQCBatch(5, LocalQCBatch.DEFAULT_SIZE);
+
+        for (int i = 0; i < N_BINS; i++) {
+            int[] bin = this.bins5[i];
+
+            for (int j = 0; j < 15; j++)
+                batch.setSampling(j, bin[1+j]);
+
+            batch.add(section, i * 500, bin[0]);
+        }
+
+        batch.flush();
+        return section.getLocalQCs().size();
+    }
+}
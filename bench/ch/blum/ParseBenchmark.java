@@ -0,0 +1,72 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * BED line parsing, as done in BinnedProfile.loadWiggles (chromosome, start, end, strand),
+ * against the former readLine/split parsing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+    private static final int N_LINES = 1000000;
+
+    private byte[] bed;
+
+    @Setup
+    public void setup() {
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+
+        for (int i = 0; i < N_LINES; i++) {
+            start += random.nextInt(100);
+            sb.append(i < N_LINES / 2 ? "chr1" : "chr2").append('\t').append(start).append('\t').append(start + 50)
+                    .append("\tr").append(i).append("\t0\t").append(random.nextBoolean() ? '+' : '-').append('\n');
+        }
+
+        this.bed = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long tabLineReader() throws IOException {
+        TabLineReader reader = new TabLineReader(new ByteArrayInputStream(this.bed));
+        byte[] chromBytes = null;
+        long sum = 0;
+
+        while (reader.next()) {
+            if (chromBytes == null || ! reader.columnEquals(0, chromBytes))
+                chromBytes = reader.getColumn(0).getBytes(StandardCharsets.UTF_8);
+
+            sum += reader.parseInt(1) + reader.parseInt(2) + (reader.getColumnByte(5) == '+' ? 1 : 0);
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    public long readLineSplit() throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.bed), StandardCharsets.UTF_8));
+        String line;
+        long sum = 0;
+
+        while ((line = br.readLine()) != null) {
+            String[] cols = line.trim().split("\t");
+            sum += Integer.parseInt(cols[1]) + Integer.parseInt(cols[2]) + (cols[5].equals("+") ? 1 : 0) + cols[0].length();
+        }
+
+        return sum;
+    }
+}
@@ -0,0 +1,74 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Read accumulation (Section.addRead, direct and difference modes), and the copy of the counters by blocks
+ * into a reused buffer, as ProfileWriter does (Section.getWiggles(int, int[], int)).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class SectionBenchmark {
+    private static final int SIZE = 50000000;
+    private static final int N_READS = 1000000;
+
+    @Param({"10", "50", "200"})
+    public int span;
+
+    @Param({"150"})
+    public int readExtension;
+
+    @Param({"false", "true"})
+    public boolean useDifferences;
+
+    private int[] starts;
+    private Section section;
+    private int[] block;
+
+    @Setup(Level.Trial)
+    public void setupReads() {
+        SplittableRandom random = new SplittableRandom(42);
+        this.starts = new int[N_READS];
+
+        for (int i = 0; i < N_READS; i++)
+            this.starts[i] = random.nextInt(SIZE - this.readExtension);
+
+        Arrays.sort(this.starts);
+        this.block = new int[Section.BLOCK_BINS * 2];
+    }
+
+    @Setup(Level.Invocation)
+    public void setupSection() {
+        this.section = new Section(SIZE, this.span, this.useDifferences);
+    }
+
+    @Benchmark
+    public Section addRead() {
+        for (int i = 0; i < N_READS; i++)
+            this.section.addRead(this.starts[i], this.starts[i] + this.readExtension, (i & 7) != 0);
+
+        return this.section;
+    }
+
+    @Benchmark
+    public int[] addReadAndGetWiggles() {
+        this.addRead();
+        int nWiggles = this.section.getNWiggles();
+
+        for (int first = 0; first < nWiggles; first += Section.BLOCK_BINS)
+            this.section.getWiggles(first, this.block, Math.min(Section.BLOCK_BINS, nWiggles - first));
+
+        return this.block;
+    }
+}
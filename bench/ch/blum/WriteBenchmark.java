@@ -0,0 +1,69 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * HDF5 output of a loaded chromosome (what BinnedProfile.toHDF5 does for each section).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+    private static final int SIZE = 50000000;
+    private static final int N_READS = 1000000;
+
+    @Param({"50"})
+    public int span;
+
+    @Param({"deflate:1", "none"})
+    public String codec;
+
+    private File file;
+    private StorageOptions storage;
+    private Section section;
+
+    @Setup(Level.Trial)
+    public void setupFile() throws IOException {
+        this.file = File.createTempFile("h5ngsqc-bench", ".h5");
+        this.storage = StorageOptions.parse(this.codec, StorageOptions.DEFAULT_CHUNK_SIZE, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupSection() {
+        SplittableRandom random = new SplittableRandom(42);
+        this.section = new Section(SIZE, this.span);
+
+        for (int i = 0; i < N_READS; i++) {
+            int start = random.nextInt(SIZE - 150);
+            this.section.addRead(start, start + 150, true);
+        }
+
+        for (int position = 0; position < SIZE; position += 500) {
+            if (random.nextInt(4) == 0)
+                this.section.addLocalQC(position, 1 + random.nextInt(200), random.nextDouble() * 10);
+        }
+    }
+
+    @Benchmark
+    public void toHDF5() {
+        try (ProfileWriter writer = new ProfileWriter(this.file, false, this.storage, ZoomLevel.DEFAULT_SPANS)) {
+            writer.write("chr1", this.section);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        this.file.delete();
+    }
+}
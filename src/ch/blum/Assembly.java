@@ -5,14 +5,33 @@ package ch.blum;
  */
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.TreeSet;
 
+/**
+ * Chromosome sizes of a genome assembly. Chromosomes have dense identifiers (0 to getNChroms() - 1,
+ * in the order of the file), which can be resolved from their name, or from one of their aliases
+ * (see loadAliases()), directly from bytes (see Resolver), without decoding a String.
+ */
 public class Assembly {
     private final HashMap<String, Integer> chromSizes;
+    private final ArrayList<String> chroms;
+
+    // Identifier of each name and alias
+    private final HashMap<String, Integer> chromIds;
+
+    // Open-addressing table of the UTF-8 names and aliases, for lookups from bytes (see index())
+    private byte[][] keys;
+    private int[] ids;
+    private int mask;
 
     public Assembly(File file) {
         this.chromSizes = new HashMap<>();
+        this.chroms = new ArrayList<>();
+        this.chromIds = new HashMap<>();
 
         try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
             String line;
@@ -22,7 +41,10 @@ public class Assembly {
                 String[] cols = line.trim().split("\t");
 
                 try {
-                    this.chromSizes.put(cols[0], Integer.parseInt(cols[1]));
+                    if (this.chromSizes.put(cols[0], Integer.parseInt(cols[1])) == null) {
+                        this.chromIds.put(cols[0], this.chroms.size());
+                        this.chroms.add(cols[0]);
+                    }
                 } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
                     System.err.format("%s: invalid assembly file\n", file.getPath());
                     error = true;
@@ -37,13 +59,204 @@ public class Assembly {
             e.printStackTrace();
             System.exit(1);
         }
+
+        this.index();
+    }
+
+    /**
+     * Loads a table of aliases: each line gives tab-separated names of the same chromosome (e.g. 'chrM  MT'),
+     * one of which is in the assembly; the others then resolve to this chromosome. Lines without any chromosome
+     * of the assembly are ignored, so that a table covering a whole assembly can be used with a subset of it.
+     * Exits if a line names two chromosomes of the assembly, or if an alias is given to two chromosomes.
+     */
+    public void loadAliases(File file) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String line;
+            int lineNumber = 0;
+
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+
+                String[] cols = line.split("\t");
+                String chrom = null;
+
+                for (String name: cols) {
+                    if (! this.chromSizes.containsKey(name))
+                        continue;
+                    else if (chrom != null && ! chrom.equals(name)) {
+                        System.err.format("%s: '%s' and '%s' are both chromosomes of the assembly at line %d\n",
+                                file.getPath(), chrom, name, lineNumber);
+                        System.exit(1);
+                    }
+
+                    chrom = name;
+                }
+
+                if (chrom == null)
+                    continue;
+
+                int id = this.chromIds.get(chrom);
+
+                for (String name: cols) {
+                    Integer other = this.chromIds.putIfAbsent(name, id);
+
+                    if (other != null && other != id) {
+                        System.err.format("%s: alias '%s' of '%s' is already an alias of '%s' at line %d\n",
+                                file.getPath(), name, chrom, this.chroms.get(other), lineNumber);
+                        System.exit(1);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        this.index();
+    }
+
+    /**
+     * Builds the byte lookup table: at least twice as many slots as names and aliases, so probes stay short.
+     */
+    private void index() {
+        int capacity = Integer.highestOneBit(Math.max(this.chromIds.size(), 1) * 4 - 1);
+        this.keys = new byte[capacity][];
+        this.ids = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (String name: this.chromIds.keySet()) {
+            byte[] key = name.getBytes(StandardCharsets.UTF_8);
+            int slot = hash(key, 0, key.length) & this.mask;
+
+            while (this.keys[slot] != null)
+                slot = (slot + 1) & this.mask;
+
+            this.keys[slot] = key;
+            this.ids[slot] = this.chromIds.get(name);
+        }
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0;
+
+        for (int i = offset; i < offset + length; i++)
+            h = 31 * h + bytes[i];
+
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] key, byte[] bytes, int offset, int length) {
+        if (key.length != length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (key[i] != bytes[offset + i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the identifier of a chromosome, from its name or an alias, or -1 if it is not in the assembly.
+     */
+    public int getChromId(String name) {
+        Integer id = this.chromIds.get(name);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Same as getChromId(String), from UTF-8 bytes.
+     */
+    public int getChromId(byte[] bytes, int offset, int length) {
+        int slot = this.getSlot(bytes, offset, length);
+        return slot >= 0 ? this.ids[slot] : -1;
+    }
+
+    /**
+     * Index of a name or alias in keys and ids, or -1 if it is not in the assembly.
+     */
+    private int getSlot(byte[] bytes, int offset, int length) {
+        int slot = hash(bytes, offset, length) & this.mask;
+
+        while (this.keys[slot] != null) {
+            if (equals(this.keys[slot], bytes, offset, length))
+                return slot;
+
+            slot = (slot + 1) & this.mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Hash of the names and aliases, and of the chromosome they resolve to: equal fingerprints mean
+     * that the same names are known (e.g. to check that a read cache skipped the same chromosomes).
+     */
+    public long getFingerprint() {
+        long h = 1125899906842597L;
+
+        for (String name: new TreeSet<>(this.chromIds.keySet())) {
+            String entry = name + '\t' + this.chroms.get(this.chromIds.get(name)) + '\n';
+
+            for (int i = 0; i < entry.length(); i++)
+                h = 31 * h + entry.charAt(i);
+        }
+
+        return h;
+    }
+
+    /**
+     * Name of a chromosome, as in the assembly file.
+     */
+    public String getChrom(int id) {
+        return this.chroms.get(id);
+    }
+
+    public int getNChroms() {
+        return this.chroms.size();
     }
 
     public Integer getChromSize(String chrom) {
         return this.chromSizes.get(chrom);
     }
 
-    public Set<String> getChroms() {
-        return this.chromSizes.keySet();
+    /**
+     * Chromosomes, in the order of the assembly file (i.e. by identifier).
+     */
+    public List<String> getChroms() {
+        return this.chroms;
+    }
+
+    public Resolver newResolver() {
+        return new Resolver();
+    }
+
+    /**
+     * Resolves chromosome names for one thread, remembering the last one: with an input sorted by chromosome,
+     * a name is looked up once per chromosome, then only compared to the previous one (without copying it).
+     * Names that are not in the assembly are looked up every time.
+     */
+    public class Resolver {
+        // Slot of the previous name in keys and ids, or -1
+        private int lastSlot;
+
+        private Resolver() {
+            this.lastSlot = -1;
+        }
+
+        /**
+         * Returns the identifier of the chromosome named by the given UTF-8 bytes, or -1 if it is not in the assembly.
+         */
+        public int getChromId(byte[] bytes, int offset, int length) {
+            if (this.lastSlot < 0 || ! Assembly.equals(Assembly.this.keys[this.lastSlot], bytes, offset, length))
+                this.lastSlot = Assembly.this.getSlot(bytes, offset, length);
+
+            return this.lastSlot >= 0 ? Assembly.this.ids[this.lastSlot] : -1;
+        }
     }
 }
@@ -0,0 +1,144 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch mode: processes the samples of a manifest in one JVM, sharing the assembly.
+ * Samples start in manifest order; at most options.jobs run at once, and a sample only starts
+ * when its estimated memory fits in what is left of the heap budget (a sample larger than
+ * the whole budget runs alone).
+ * A sample that fails (see SampleException) is reported, and the other samples go on;
+ * the batch then exits with an error.
+ */
+public class BatchRunner {
+    private final Assembly assembly;
+    private final Options options;
+
+    public BatchRunner(Assembly assembly, Options options) {
+        this.assembly = assembly;
+        this.options = options;
+    }
+
+    public void run(File manifestFile) {
+        ArrayList<File[]> samples = readManifest(manifestFile);
+        int budget = (int) Math.min(Integer.MAX_VALUE, Math.max(1, this.options.memoryBudget >> 20));
+        Semaphore memory = new Semaphore(budget, true);
+        Semaphore slots = new Semaphore(this.options.jobs, true);
+        ExecutorService executor = Executors.newFixedThreadPool(this.options.jobs);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+
+        // Per-sample progress messages would interleave
+        Options sampleOptions = this.options.copy();
+        sampleOptions.quiet = true;
+
+        try {
+            for (int i = 0; i < samples.size(); i++) {
+                File[] sample = samples.get(i);
+                BinnedProfile profile = new BinnedProfile(sample[0], sample[1], this.assembly,
+                        sampleOptions.wigSpans, sampleOptions.useDifferences, sampleOptions.threads);
+                Main.configure(profile, sampleOptions);
+                long estimate = profile.estimateMemory(sampleOptions.useFiveReps, sampleOptions.stream);
+                int permits = (int) Math.min(budget, Math.max(1, estimate >> 20));
+                String name = String.format("[%d/%d] %s", i + 1, samples.size(), sample[2].getPath());
+
+                slots.acquire();
+                memory.acquire(permits);
+
+                if (! this.options.quiet)
+                    System.err.format("%s: started (estimated memory: %d MB)\n", name, estimate >> 20);
+
+                futures.add(executor.submit(() -> {
+                    try {
+                        long startTime = System.nanoTime();
+                        Options options = sampleOptions.copy();
+                        options.reportFile = sample[3];
+                        Main.process(profile, sample[2], options, new RunReport());
+
+                        if (! this.options.quiet)
+                            System.err.format("%s: done in %.1f s\n", name, (System.nanoTime() - startTime) / 1e9);
+                    } catch (RuntimeException e) {
+                        // Including errors of the HDF5 library while writing
+                        profile.abort();
+                        failures.incrementAndGet();
+                        System.err.format("%s: failed: %s\n", name, e instanceof SampleException ? e.getMessage() : e.toString());
+                    } finally {
+                        memory.release(permits);
+                        slots.release();
+                    }
+                }));
+            }
+
+            for (Future<?> future: futures)
+                future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            executor.shutdown();
+        }
+
+        if (failures.get() > 0) {
+            System.err.format("%d of %d samples failed\n", failures.get(), samples.size());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the manifest: one sample per line (BED, TABLE, HDF5, and optionally REPORT), tab-separated.
+     * Empty lines and lines starting with '#' are ignored.
+     */
+    private static ArrayList<File[]> readManifest(File file) {
+        ArrayList<File[]> samples = new ArrayList<>();
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String line;
+            int lineNumber = 0;
+
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+
+                if (line.isEmpty() || line.charAt(0) == '#')
+                    continue;
+
+                String[] cols = line.split("\t");
+
+                if (cols.length < 3 || cols.length > 4) {
+                    System.err.format("%s: 3 or 4 columns expected at line %d\n", file.getPath(), lineNumber);
+                    System.exit(1);
+                }
+
+                for (int i = 0; i < 2; i++) {
+                    File input = new File(cols[i]);
+
+                    if (InputStreams.isStdin(input)) {
+                        System.err.format("%s: the standard input cannot be used in batch mode (line %d)\n", file.getPath(), lineNumber);
+                        System.exit(1);
+                    } else if (! input.exists() || input.isDirectory()) {
+                        System.err.format("%s: no such file or directory\n", input.getPath());
+                        System.exit(1);
+                    }
+                }
+
+                samples.add(new File[]{new File(cols[0]), new File(cols[1]), new File(cols[2]), cols.length > 3 ? new File(cols[3]) : null});
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        return samples;
+    }
+}
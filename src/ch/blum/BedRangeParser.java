@@ -0,0 +1,299 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parses an uncompressed BED file on several threads. The file is split at line boundaries into ranges;
+ * each range is memory-mapped and parsed by a worker into primitive columns, and parsed ranges
+ * are returned in file order, so that reads are accumulated exactly as if the file was read sequentially.
+ * Lines are split by a TabLineReader, which copies the mapped range into its buffer by 1 MB blocks,
+ * and chromosomes are resolved to their identifier in the assembly.
+ * Lines that cannot be used (unknown chromosome, invalid line) are kept in order with their line number,
+ * to be reported by the caller.
+ */
+public class BedRangeParser implements AutoCloseable {
+    public static final int RANGE_SIZE = 1 << 24;
+
+    public static final byte FW_READ = 0;
+    public static final byte RV_READ = 1;
+    public static final byte UNKNOWN_CHROM = 2;
+    public static final byte MISSING_COLUMN = 3;
+    public static final byte INVALID_NUMBER = 4;
+
+    private final FileChannel channel;
+    private final Assembly assembly;
+    private final long[] boundaries;
+    private final ExecutorService executor;
+    private final ArrayDeque<Future<Range>> pending;
+    private final int maxPending;
+    private int nextRange;
+
+    public BedRangeParser(File file, Assembly assembly, int threads) throws IOException {
+        this.channel = FileChannel.open(file.toPath());
+        this.assembly = assembly;
+        this.boundaries = this.split();
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.pending = new ArrayDeque<>();
+        this.maxPending = threads * 2;
+        this.nextRange = 0;
+    }
+
+    /**
+     * Returns true if the file can be split: a regular file, not compressed, and larger than a range.
+     */
+    public static boolean canParse(File file) {
+        if (InputStreams.isStdin(file) || ! file.isFile() || file.length() <= RANGE_SIZE)
+            return false;
+
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() != 0x1f || in.read() != 0x8b;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the start of each range, and the size of the file: ranges start after a newline.
+     */
+    private long[] split() throws IOException {
+        long size = this.channel.size();
+        ArrayList<Long> boundaries = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        boundaries.add(0L);
+
+        for (long position = RANGE_SIZE; position < size; ) {
+            long newline = -1;
+
+            // First newline at or after position - 1
+            for (long offset = position - 1; newline < 0 && offset < size; offset += buffer.limit()) {
+                buffer.clear();
+
+                if (this.channel.read(buffer, offset) <= 0)
+                    break;
+
+                buffer.flip();
+
+                for (int i = 0; i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        newline = offset + i;
+                        break;
+                    }
+                }
+            }
+
+            if (newline < 0 || newline + 1 >= size)
+                break;
+
+            boundaries.add(newline + 1);
+            position = newline + 1 + RANGE_SIZE;
+        }
+
+        boundaries.add(size);
+        long[] values = new long[boundaries.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = boundaries.get(i);
+        return values;
+    }
+
+    /**
+     * Returns the next range in file order, or null at the end of the file.
+     */
+    public Range next() throws IOException {
+        while (this.pending.size() < this.maxPending && this.nextRange < this.boundaries.length - 1) {
+            long start = this.boundaries[this.nextRange];
+            long end = this.boundaries[this.nextRange+1];
+            this.pending.add(this.executor.submit(() -> this.parse(start, end)));
+            this.nextRange++;
+        }
+
+        Future<Range> future = this.pending.poll();
+
+        if (future == null)
+            return null;
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Range parse(long start, long end) throws IOException {
+        MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        TabLineReader reader = new TabLineReader(new ByteBufferInputStream(buffer), 1 << 20);
+        Range range = new Range(end, (int) ((end - start) / 32));
+        Assembly.Resolver resolver = this.assembly.newResolver();
+
+        while (reader.next()) {
+            range.nLines++;
+
+            if (reader.isEmpty() || reader.firstByte() == '#' || reader.startsWithIgnoreCase("track") || reader.startsWithIgnoreCase("browser"))
+                continue;
+
+            try {
+                int chromId = resolver.getChromId(reader.getBuffer(), reader.getColumnStart(0), reader.getColumnLength(0));
+
+                if (chromId < 0) {
+                    range.add(UNKNOWN_CHROM, range.unknownChroms.size(), 0, 0);
+                    range.unknownChroms.add(reader.getColumn(0));
+                    continue;
+                }
+
+                int pos1 = reader.parseInt(1);
+                int pos2 = reader.parseInt(2);
+                range.add(reader.getColumnByte(5) == '+' ? FW_READ : RV_READ, chromId, pos1, pos2);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                range.add(MISSING_COLUMN, 0, 0, 0);
+            } catch (NumberFormatException e) {
+                range.add(INVALID_NUMBER, 0, 0, 0);
+            }
+        }
+
+        return range;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.executor.shutdownNow();
+        this.channel.close();
+    }
+
+    /**
+     * Parsed lines of a range, in file order.
+     */
+    public static class Range {
+        private final long end;
+        private int n;
+        private int nLines;
+        private byte[] types;
+        private int[] chroms;
+        private int[] starts;
+        private int[] ends;
+        private int[] lines;
+        private final ArrayList<String> unknownChroms;
+
+        private Range(long end, int capacity) {
+            capacity = Math.max(capacity, 16);
+            this.end = end;
+            this.n = 0;
+            this.nLines = 0;
+            this.types = new byte[capacity];
+            this.chroms = new int[capacity];
+            this.starts = new int[capacity];
+            this.ends = new int[capacity];
+            this.lines = new int[capacity];
+            this.unknownChroms = new ArrayList<>();
+        }
+
+        private void add(byte type, int chrom, int start, int end) {
+            if (this.n == this.types.length) {
+                int capacity = this.n * 2;
+                this.types = Arrays.copyOf(this.types, capacity);
+                this.chroms = Arrays.copyOf(this.chroms, capacity);
+                this.starts = Arrays.copyOf(this.starts, capacity);
+                this.ends = Arrays.copyOf(this.ends, capacity);
+                this.lines = Arrays.copyOf(this.lines, capacity);
+            }
+
+            this.types[this.n] = type;
+            this.chroms[this.n] = chrom;
+            this.starts[this.n] = start;
+            this.ends[this.n] = end;
+            this.lines[this.n] = this.nLines;
+            this.n++;
+        }
+
+        /**
+         * Offset of the end of the range in the file.
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * Number of parsed lines (reads, invalid lines, unknown chromosomes).
+         */
+        public int size() {
+            return n;
+        }
+
+        /**
+         * Number of lines of the range, comments included.
+         */
+        public int getNLines() {
+            return nLines;
+        }
+
+        public byte getType(int i) {
+            return this.types[i];
+        }
+
+        /**
+         * Chromosome identifier of a read in the assembly (see getUnknownChrom() for unknown chromosomes).
+         */
+        public int getChromId(int i) {
+            return this.chroms[i];
+        }
+
+        public String getUnknownChrom(int i) {
+            return this.unknownChroms.get(this.chroms[i]);
+        }
+
+        public int getStart(int i) {
+            return this.starts[i];
+        }
+
+        public int getEnd(int i) {
+            return this.ends[i];
+        }
+
+        /**
+         * Line number of a parsed line, from 1 at the start of the range.
+         */
+        public int getLine(int i) {
+            return this.lines[i];
+        }
+    }
+
+    /**
+     * Reads a (memory-mapped) buffer with bulk copies.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (! this.buffer.hasRemaining())
+                return -1;
+
+            len = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, len);
+            return len;
+        }
+    }
+}
@@ -5,343 +5,912 @@ package ch.blum;
  */
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipException;
-import ch.systemsx.cisd.hdf5.*;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class BinnedProfile {
     private final File bedFile;
     private final File tableFile;
+    private final Assembly assembly;
+    private final int[] wigSpans;
+
+    // Sections of the first span (localQCs are loaded there), and sections of all spans, by chromosome
     private final HashMap<String, Section> sections;
+    private final HashMap<String, Section[]> wiggleSections;
+
+    // Sections of the first span, by chromosome identifier (see Assembly)
+    private final Section[] sectionsById;
+    private final int threads;
+    private RunReport report;
+    private File cacheFile;
+    private boolean unsorted;
+
+    // Internal sort of the reads before accumulation (sortRunSize is 0 if disabled)
+    private File sortDir;
+    private int sortRunSize;
 
+    // Streaming mode: finished chromosomes are written by a background thread while parsing goes on
+    private final HashSet<String> writtenChroms;
+    private ProfileWriter[] streamWriters;
+    private ExecutorService writerThread;
+    private Future<?> pendingWrite;
+
+    // Update mode: wiggles are added to existing files instead of being written to new ones
+    private ProfileUpdater[] updaters;
 
     public BinnedProfile(File bedFile, File tableFile, Assembly assembly, int wigSpan) {
+        this(bedFile, tableFile, assembly, wigSpan, false, 1);
+    }
+
+    public BinnedProfile(File bedFile, File tableFile, Assembly assembly, int wigSpan, boolean useDifferences, int threads) {
+        this(bedFile, tableFile, assembly, new int[]{wigSpan}, useDifferences, threads);
+    }
+
+    /**
+     * Reads are accumulated for several spans in one pass; each span is written to its own file (see getOutputFiles()).
+     */
+    public BinnedProfile(File bedFile, File tableFile, Assembly assembly, int[] wigSpans, boolean useDifferences, int threads) {
         this.bedFile = bedFile;
         this.tableFile = tableFile;
+        this.assembly = assembly;
+        this.wigSpans = wigSpans;
         this.sections = new HashMap<>();
+        this.wiggleSections = new HashMap<>();
+        this.sectionsById = new Section[assembly.getNChroms()];
+        this.threads = threads;
+        this.report = new RunReport();
+        this.cacheFile = null;
+        this.unsorted = false;
+        this.sortDir = null;
+        this.sortRunSize = 0;
+        this.writtenChroms = new HashSet<>();
+        this.streamWriters = null;
+        this.writerThread = null;
+        this.pendingWrite = null;
+        this.updaters = null;
 
         for (String chrom: assembly.getChroms()) {
-            this.sections.put(chrom, new Section(assembly.getChromSize(chrom), wigSpan));
+            Section[] sections = new Section[wigSpans.length];
+
+            for (int i = 0; i < wigSpans.length; i++)
+                sections[i] = new Section(assembly.getChromSize(chrom), wigSpans[i], useDifferences);
+
+            this.sections.put(chrom, sections[0]);
+            this.wiggleSections.put(chrom, sections);
+            this.sectionsById[assembly.getChromId(chrom)] = sections[0];
         }
     }
 
+    /**
+     * Returns the output file of each span: file itself for a single span, otherwise file with the span
+     * inserted before the extension (sample.h5 gives sample.10.h5, sample.50.h5, ...).
+     */
+    public static File[] getOutputFiles(File file, int[] wigSpans) {
+        if (wigSpans.length == 1)
+            return new File[]{file};
+
+        File[] files = new File[wigSpans.length];
+        String path = file.getPath();
+        int i = path.lastIndexOf('.');
+
+        if (i <= path.lastIndexOf(File.separatorChar))
+            i = path.length();
+
+        for (int j = 0; j < wigSpans.length; j++)
+            files[j] = new File(path.substring(0, i) + "." + wigSpans[j] + path.substring(i));
+
+        return files;
+    }
+
+    /**
+     * Records the stages of this profile (loads, per-chromosome writes) in the given report.
+     */
+    public void setReport(RunReport report) {
+        this.report = report;
+    }
+
+    /**
+     * If true, PCR duplicates are detected whatever the order of the reads (see DuplicateFilter):
+     * the BED does not need to be sorted by position. Must be called before loadWiggles().
+     */
+    public void setUnsorted(boolean unsorted) {
+        this.unsorted = unsorted;
+    }
+
+    /**
+     * Sorts the reads by chromosome and position before accumulating them (see ExternalSorter),
+     * so that PCR duplicates are detected as with a sorted BED, and chromosomes can be streamed.
+     * Must be called before loadWiggles().
+     * @param tmpDir directory of the sorted runs (null for the default temporary directory)
+     * @param runSize number of reads sorted in memory at once, per thread
+     */
+    public void setSort(File tmpDir, int runSize) {
+        this.sortDir = tmpDir;
+        this.sortRunSize = runSize;
+    }
+
+    /**
+     * Keeps the wiggle counters off-heap, in memory-mapped files of dir (null for the default temporary
+     * directory; see MappedCounters), so that the heap does not grow with the number of bins.
+     * Must be called before loadWiggles().
+     */
+    public void setMappedWiggles(File dir) {
+        for (Section[] sections: this.wiggleSections.values()) {
+            for (Section section: sections)
+                section.useMappedWiggles(dir);
+        }
+    }
+
+    /**
+     * Estimated peak heap needed to load and write this profile, in bytes.
+     * In streaming mode, at most two chromosomes have their wiggles in memory (one loading, one being written).
+     */
+    public long estimateMemory(boolean useFiveReps, boolean stream) {
+        long localQCs = 0;
+        long wiggles = 0;
+        long maxWiggles = 0;
+
+        for (Section[] sections: this.wiggleSections.values()) {
+            long chromWiggles = 0;
+
+            for (Section section: sections)
+                chromWiggles += section.estimateWiggleMemory();
+
+            if (this.unsorted)
+                chromWiggles += DuplicateFilter.estimateMemory(sections[0].getSize());
+
+            localQCs += sections[0].estimateLocalQCMemory(useFiveReps);
+            wiggles += chromWiggles;
+            maxWiggles = Math.max(maxWiggles, chromWiggles);
+        }
+
+        // Sort buffers: 16 bytes per read, one run per thread
+        long sort = (long) this.threads * this.sortRunSize * 16;
+
+        return localQCs + sort + (stream ? 2 * maxWiggles : wiggles);
+    }
+
     public void loadLocalQCs(int backgroundThreshold, boolean useFiveReps, boolean skip, boolean forgive, boolean quiet) {
-        if (useFiveReps) {
-            this.loadLocalQCs5(backgroundThreshold, skip, forgive, quiet);
-        } else
-            this.loadLocalQCs(backgroundThreshold, skip, forgive, quiet);
+        this.loadLocalQCs(useFiveReps ? 5 : 1, backgroundThreshold, skip, forgive, quiet);
+    }
+
+    /**
+     * Enables streaming: while loading wiggles from a BED sorted by chromosome, each chromosome
+     * is written and released as soon as the next one starts. Must be called before loadWiggles().
+     */
+    public void openStream(File file, boolean useFiveReps, StorageOptions storage, int[] zoomSpans) {
+        File[] files = getOutputFiles(file, this.wigSpans);
+        this.streamWriters = new ProfileWriter[files.length];
+
+        for (int i = 0; i < files.length; i++)
+            this.streamWriters[i] = new ProfileWriter(files[i], useFiveReps, storage, zoomSpans);
+
+        this.writerThread = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Enables the update mode: wiggles will be added to existing files (see ProfileUpdater and updateHDF5()).
+     * Throws a SampleException if a file is missing, or if a chromosome of the assembly is missing or has another size or span.
+     */
+    public void openUpdate(File file, StorageOptions storage) {
+        File[] files = getOutputFiles(file, this.wigSpans);
+        this.updaters = new ProfileUpdater[files.length];
+
+        for (int i = 0; i < files.length; i++) {
+            if (! files[i].isFile())
+                throw new SampleException(String.format("%s: no such file or directory", files[i].getPath()));
+
+            this.updaters[i] = new ProfileUpdater(files[i], storage);
+
+            for (String chrom: this.wiggleSections.keySet()) {
+                String error = this.updaters[i].check(chrom, this.wiggleSections.get(chrom)[i]);
+
+                if (error != null)
+                    throw new SampleException(String.format("%s: %s", files[i].getPath(), error));
+            }
+        }
+    }
+
+    /**
+     * Enables the read cache: if file is a valid cache of the BED, loadWiggles() reads it instead of the BED;
+     * otherwise the BED is parsed and the cache is written. Must be called before loadWiggles().
+     */
+    public void setReadCache(File file) {
+        this.cacheFile = file;
     }
 
     public void loadWiggles(int readExtension, boolean skip, boolean forgive, boolean quiet) {
-        int lineNumber = 0;
+        // Skipped and forgiven lines are not cached: the cache is only valid for the same options
+        int cacheFlags = (skip ? ReadCache.SKIP : 0) | (forgive ? ReadCache.FORGIVE : 0);
+        long fingerprint = skip ? this.assembly.getFingerprint() : 0;
 
-        /**
-         * todo: read from stdin with:
-         * br = new BufferedReader(new InputStreamReader(System.in));
-         */
-        try (FileInputStream fis = new FileInputStream(this.bedFile)) {
+        if (this.cacheFile != null && ReadCache.isValid(this.cacheFile, this.bedFile, cacheFlags, fingerprint)) {
+            if (! quiet)
+                System.err.format("\tusing read cache %s\n", this.cacheFile.getPath());
+
+            this.loadWigglesFromCache(readExtension, skip, quiet);
+        } else
+            this.loadWigglesFromBED(readExtension, skip, forgive, quiet, cacheFlags, fingerprint);
+    }
 
-            try (BufferedReader br = new BufferedReader(isGzipped(this.bedFile) ?
-                    new InputStreamReader(new GZIPInputStream(fis)) : new InputStreamReader(fis))
-            ) {
-                String line;
-                String prevChrom = null;
-                int prevPos1 = -1;
-                boolean sawFwRead = false;
-                boolean sawRvRead = false;
+    private void loadWigglesFromBED(int readExtension, boolean skip, boolean forgive, boolean quiet, int cacheFlags, long fingerprint) {
+        long lineNumber = 0;
+        RunReport.Stage stage = this.report.start("wiggles", this.bedFile);
+        ReadLoader loader = new ReadLoader(readExtension, this.bedFile, "line");
+        BedSink sink = null;
+        boolean loaded = false;
 
-                while ((line = br.readLine()) != null) {
-                    lineNumber++;
+        try {
+            sink = new BedSink(loader, cacheFlags, fingerprint);
 
-                    if (! quiet && lineNumber % 1000000 == 0)
-                        System.err.format("\t%d reads parsed\n", lineNumber);
+            if (this.threads > 1 && BedRangeParser.canParse(this.bedFile))
+                lineNumber = this.parseBEDRanges(sink, stage, skip, forgive, quiet);
+            else
+                lineNumber = this.parseBED(sink, stage, skip, forgive, quiet);
+
+            sink.close(quiet);
+            loaded = true;
+        } catch (SampleException e) {
+            throw e;
+        } catch (IOException | RuntimeException | Error e) {
+            // Including the error of an accumulator thread (see ReadDispatcher), and OutOfMemoryError:
+            // reads were lost, but only this sample fails (see BatchRunner)
+            throw new SampleException(this.bedFile.getPath() + ": " + e, e);
+        } finally {
+            if (! loaded) {
+                if (sink != null)
+                    sink.abort();
+                else
+                    loader.abort();
+            }
+        }
 
-                    if (line.charAt(0) == '#' || line.toLowerCase().startsWith("track") || line.toLowerCase().startsWith("broser"))
-                        continue;
+        stage.setLines(lineNumber);
+        stage.end();
+    }
 
-                    // chr2L	995	1068	ERR393678.1060596	1	+
-                    String[] cols = line.trim().split("\t");
+    /**
+     * Parses the BED line by line. Returns the number of lines.
+     */
+    private long parseBED(BedSink sink, RunReport.Stage stage, boolean skip, boolean forgive, boolean quiet) throws IOException {
+        long lineNumber = 0;
 
-                    try {
-                        String chrom = cols[0];
+        try (InputStream is = this.open(this.bedFile, stage)) {
+            TabLineReader reader = new TabLineReader(is);
+            Assembly.Resolver resolver = this.assembly.newResolver();
 
-                        if (this.sections.get(chrom) == null) {
-                            if (skip)
-                                continue;
-                            else {
-                                System.err.format("%s: unknown chromosome '%s' at line %d\n",
-                                        this.bedFile.getPath(), chrom, lineNumber);
-                                System.exit(1);
-                            }
-                        }
+            while (reader.next()) {
+                lineNumber++;
 
-                        int pos1 = Integer.parseInt(cols[1]);
-                        int pos2 = Integer.parseInt(cols[2]);
-                        boolean isFwRead = cols[5].charAt(0) == '+';
+                if (! quiet && lineNumber % 100000 == 0)
+                    stage.showProgress(lineNumber, "reads");
 
-                        if (readExtension != 0) {
-                            if (isFwRead)
-                                pos2 = pos1 + readExtension;
-                            else
-                                pos1 = pos2 - readExtension;
-                        }
+                if (reader.isEmpty() || reader.firstByte() == '#' || reader.startsWithIgnoreCase("track") || reader.startsWithIgnoreCase("browser"))
+                    continue;
 
-                        boolean isUniqueRead = true;
-                        if (prevChrom != null && chrom.equals(prevChrom) && pos1 == prevPos1) {
-                            if (isFwRead) {
-                                if (sawFwRead)
-                                    isUniqueRead = false;
-                                else
-                                    sawFwRead = true;
-                            } else if (sawRvRead) {
-                                isUniqueRead = false;
-                            } else {
-                                sawRvRead = true;
-                            }
-                        } else if (isFwRead) {
-                            sawFwRead = true;
-                            sawRvRead = false;
-                        } else {
-                            sawFwRead = false;
-                            sawRvRead = true;
-                        }
+                // chr2L	995	1068	ERR393678.1060596	1	+
+                try {
+                    int chromId = resolver.getChromId(reader.getBuffer(), reader.getColumnStart(0), reader.getColumnLength(0));
 
-                        this.sections.get(chrom).addRead(pos1, pos2, isUniqueRead);
-                        prevChrom = chrom;
-                        prevPos1 = pos1;
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        if (! forgive) {
-                            System.err.format("%s: 6 columns expected at line %d\n", this.bedFile.getPath(), lineNumber);
-                            System.exit(1);
-                        }
-                    } catch (NumberFormatException e) {
-                        if (! forgive) {
-                            System.err.format("%s: invalid number at line %d\n", this.bedFile.getPath(), lineNumber);
-                            System.exit(1);
-                        }
+                    if (chromId < 0) {
+                        this.unknownChrom(stage, skip, reader.getColumn(0), lineNumber);
+                        continue;
                     }
+
+                    int pos1 = reader.parseInt(1);
+                    int pos2 = reader.parseInt(2);
+                    boolean isFwRead = reader.getColumnByte(5) == '+';
+                    sink.add(chromId, pos1, pos2, isFwRead, lineNumber);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    this.invalidLine(stage, forgive, "6 columns expected", lineNumber);
+                } catch (NumberFormatException e) {
+                    this.invalidLine(stage, forgive, "invalid number", lineNumber);
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
         }
+
+        return lineNumber;
     }
 
-    private void loadLocalQCs5(int backgroundThreshold, boolean skip, boolean forgive, boolean quiet) {
-        int lineNumber = 0;
+    /**
+     * Parses an uncompressed BED by ranges on several threads (see BedRangeParser);
+     * reads are then added in file order. Returns the number of lines.
+     */
+    private long parseBEDRanges(BedSink sink, RunReport.Stage stage, boolean skip, boolean forgive, boolean quiet) throws IOException {
+        long lineNumber = 0;
+
+        try (BedRangeParser parser = new BedRangeParser(this.bedFile, this.assembly, this.threads)) {
+            BedRangeParser.Range range;
+
+            while ((range = parser.next()) != null) {
+                for (int i = 0; i < range.size(); i++) {
+                    switch (range.getType(i)) {
+                        case BedRangeParser.FW_READ:
+                        case BedRangeParser.RV_READ:
+                            sink.add(range.getChromId(i), range.getStart(i), range.getEnd(i),
+                                    range.getType(i) == BedRangeParser.FW_READ, lineNumber + range.getLine(i));
+                            break;
+                        case BedRangeParser.UNKNOWN_CHROM:
+                            this.unknownChrom(stage, skip, range.getUnknownChrom(i), lineNumber + range.getLine(i));
+                            break;
+                        case BedRangeParser.MISSING_COLUMN:
+                            this.invalidLine(stage, forgive, "6 columns expected", lineNumber + range.getLine(i));
+                            break;
+                        default:
+                            this.invalidLine(stage, forgive, "invalid number", lineNumber + range.getLine(i));
+                    }
+                }
 
-        try (FileInputStream fis = new FileInputStream(this.tableFile)) {
+                lineNumber += range.getNLines();
+                stage.setBytes(range.getEnd());
 
-            try (BufferedReader br = new BufferedReader(isGzipped(this.tableFile) ?
-                    new InputStreamReader(new GZIPInputStream(fis)) : new InputStreamReader(fis))
-            ) {
-                String line;
+                if (! quiet)
+                    stage.showProgress(lineNumber, "reads");
+            }
+        }
 
-                while ((line = br.readLine()) != null) {
-                    lineNumber++;
+        return lineNumber;
+    }
 
-                    if (! quiet && lineNumber % 1000000 == 0)
-                        System.err.format("\t%d lines parsed\n", lineNumber);
+    private void unknownChrom(RunReport.Stage stage, boolean skip, String chrom, long lineNumber) {
+        if (skip)
+            stage.addSkipped();
+        else
+            throw new SampleException(String.format("%s: unknown chromosome '%s' at line %d", this.bedFile.getPath(), chrom, lineNumber));
+    }
 
-                    String[] cols = line.trim().split("\t");
+    private void invalidLine(RunReport.Stage stage, boolean forgive, String message, long lineNumber) {
+        if (forgive)
+            stage.addForgiven();
+        else
+            throw new SampleException(String.format("%s: %s at line %d", this.bedFile.getPath(), message, lineNumber));
+    }
 
-                    try {
-                        // chr1	3000500	3001000	4	3	3	2	4	3	4   3   2	3	3	0	0	2	1	1
-                        String chrom = cols[0];
+    /**
+     * Destination of the reads parsed from the BED: the loader, or the sorter then the loader (see setSort()),
+     * and the cache writer, if any.
+     */
+    private class BedSink {
+        private final ReadLoader loader;
+        private final ExternalSorter sorter;
+        private final ReadCache.Writer cacheWriter;
+
+        // Sort mode: chromosomes are numbered in the order they are first seen (index of each identifier, or -1)
+        private final int[] chromIndices;
+        private final ArrayList<String> chroms;
+
+        // Chromosome of the previous read
+        private int chromId;
+        private String chrom;
+        private Section section;
+        private int chromIndex;
+
+        BedSink(ReadLoader loader, int cacheFlags, long fingerprint) throws IOException {
+            this.loader = loader;
+            this.sorter = newSorter();
+            this.cacheWriter = cacheFile != null ? new ReadCache.Writer(cacheFile, bedFile, cacheFlags, fingerprint) : null;
+            this.chromIndices = new int[assembly.getNChroms()];
+            this.chroms = new ArrayList<>();
+            this.chromId = -1;
+            this.chrom = null;
+            this.section = null;
+            this.chromIndex = -1;
+            Arrays.fill(this.chromIndices, -1);
+        }
 
-                        if (this.sections.get(chrom) == null) {
-                            if (skip)
-                                continue;
-                            else {
-                                System.err.format("%s: unknown chromosome '%s' at line %d\n",
-                                        this.tableFile.getPath(), chrom, lineNumber);
-                                System.exit(1);
-                            }
-                        }
+        /**
+         * Adds a read of the chromosome with the given identifier (see Assembly).
+         */
+        void add(int chromId, int pos1, int pos2, boolean isFwRead, long lineNumber) throws IOException {
+            if (chromId != this.chromId) {
+                this.chromId = chromId;
+                this.chrom = assembly.getChrom(chromId);
+                this.section = sectionsById[chromId];
+
+                if (this.sorter != null) {
+                    if (this.chromIndices[chromId] < 0) {
+                        this.chromIndices[chromId] = this.chroms.size();
+                        this.chroms.add(this.chrom);
+                    }
 
-                        int position = Integer.parseInt(cols[1]);
-                        int intensity = Integer.parseInt(cols[3]);
+                    this.chromIndex = this.chromIndices[chromId];
+                } else if (this.cacheWriter != null)
+                    this.cacheWriter.setChrom(this.chrom);
+            }
 
-                        if (intensity < backgroundThreshold)
-                            continue;
+            if (this.sorter != null)
+                this.sorter.add(this.chromIndex, pos1, pos2, isFwRead);
+            else {
+                if (this.cacheWriter != null)
+                    this.cacheWriter.add(pos1, pos2, isFwRead);
 
-                        // Arrays of counts for random samplings
-                        int[] intensity90 = new int[5];
-                        int[] intensity70 = new int[5];
-                        int[] intensity50 = new int[5];
+                this.loader.add(this.chrom, this.section, pos1, pos2, isFwRead, lineNumber);
+            }
+        }
 
-                        // Fill the arrays
-                        for (int i = 0; i < 5; i++) {
-                            intensity90[i] = Integer.parseInt(cols[4+i]);
-                            intensity70[i] = Integer.parseInt(cols[9+i]);
-                            intensity50[i] = Integer.parseInt(cols[14+i]);
-                        }
+        void close(boolean quiet) throws IOException {
+            // The cache is written in sorted order: later runs do not need to sort again
+            if (this.sorter != null)
+                loadSorted(this.sorter, this.chroms.toArray(new String[0]), this.loader, this.cacheWriter, quiet);
 
-                        // Sums of 50% dispersions for replicate with dRCI < 10%
-                        double sum_disp50 = 0;
+            this.loader.close();
 
-                        // Number of replicates having dRCI < 10%
-                        int n_valid = 0;
+            if (this.cacheWriter != null)
+                this.cacheWriter.close();
+        }
 
-                        // Verify for each replicate if its passes the 10% dispersion thresholds
-                        for (int i = 0; i < 5; i++) {
-                            double disp90 = Math.abs(90 - 100. * intensity90[i] / intensity);
-                            double disp70 = Math.abs(70 - 100. * intensity70[i] / intensity);
-                            double disp50 = Math.abs(50 - 100. * intensity50[i] / intensity);
+        /**
+         * Releases the threads and temporary files after an error.
+         */
+        void abort() {
+            if (this.sorter != null)
+                this.sorter.abort();
 
-                            if (disp90 < 10 && disp70 < 10 && disp50 < 10) {
-                                n_valid++;
-                                sum_disp50 += disp50;
-                            }
-                        }
+            this.loader.abort();
 
-                        int flag = 0;
-                        if (n_valid > 0) {
-                            flag |= 1;
+            if (this.cacheWriter != null)
+                this.cacheWriter.abort();
+        }
+    }
 
-                            if (n_valid > 1) {
-                                flag |= 2;
+    private void loadWigglesFromCache(int readExtension, boolean skip, boolean quiet) {
+        long readNumber = 0;
+        RunReport.Stage stage = this.report.start("wiggles", this.cacheFile);
+        ReadLoader loader = new ReadLoader(readExtension, this.cacheFile, "read");
+        ExternalSorter sorter = this.newSorter();
+        boolean loaded = false;
 
-                                if (n_valid > 2) {
-                                    flag |= 4;
+        try (ReadCache.Reader reader = new ReadCache.Reader(this.cacheFile)) {
+            String[] chroms = reader.getChroms();
+            Section[] sections = new Section[chroms.length];
 
-                                    if (n_valid > 3) {
-                                        flag |= 8;
+            for (int i = 0; i < chroms.length; i++)
+                sections[i] = this.sections.get(chroms[i]);
 
-                                        if (n_valid > 4)
-                                            flag |= 16;
-                                    }
-                                }
-                            }
+            while (reader.next()) {
+                readNumber++;
 
-                            sum_disp50 /= n_valid;
-                        }
+                if (! quiet && readNumber % 100000 == 0) {
+                    stage.setBytes(reader.getPosition());
+                    stage.showProgress(readNumber, "reads");
+                }
 
-                        this.sections.get(chrom).addLocalQC5(position, intensity, sum_disp50, flag);
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        if (! forgive) {
-                            System.err.format("%s: 19 columns expected at line %d\n", this.tableFile.getPath(), lineNumber);
-                            System.exit(1);
-                        }
-                    } catch (NumberFormatException e) {
-                        if (! forgive) {
-                            System.err.format("%s: invalid number at line %d\n", this.tableFile.getPath(), lineNumber);
-                            System.exit(1);
-                        }
+                int chromIndex = reader.getChromIndex();
+                Section section = sections[chromIndex];
+
+                if (section == null) {
+                    if (skip) {
+                        stage.addSkipped();
+                        continue;
+                    } else {
+                        throw new SampleException(String.format("%s: unknown chromosome '%s' at read %d",
+                                this.cacheFile.getPath(), chroms[chromIndex], readNumber));
                     }
                 }
+
+                if (sorter != null)
+                    sorter.add(chromIndex, reader.getStart(), reader.getEnd(), reader.isFwRead());
+                else
+                    loader.add(chroms[chromIndex], section, reader.getStart(), reader.getEnd(), reader.isFwRead(), readNumber);
+            }
+
+            if (sorter != null)
+                this.loadSorted(sorter, chroms, loader, null, quiet);
+
+            loader.close();
+            loaded = true;
+            stage.setBytes(this.cacheFile.length());
+        } catch (SampleException e) {
+            throw e;
+        } catch (IOException | RuntimeException | Error e) {
+            // Including the error of an accumulator thread (see ReadDispatcher), and OutOfMemoryError:
+            // reads were lost, but only this sample fails (see BatchRunner)
+            throw new SampleException(this.cacheFile.getPath() + ": " + e, e);
+        } finally {
+            if (! loaded) {
+                if (sorter != null)
+                    sorter.abort();
+
+                loader.abort();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
         }
+
+        stage.setLines(readNumber);
+        stage.end();
     }
 
-    private void loadLocalQCs(int backgroundThreshold, boolean skip, boolean forgive, boolean quiet) {
-        int lineNumber = 0;
+    private ExternalSorter newSorter() {
+        return this.sortRunSize > 0 ? new ExternalSorter(this.sortDir, this.sortRunSize, this.threads) : null;
+    }
 
-        try (FileInputStream fis = new FileInputStream(this.tableFile)) {
+    /**
+     * Passes the sorted reads to the loader (and to the cache writer, if any).
+     */
+    private void loadSorted(ExternalSorter sorter, String[] chroms, ReadLoader loader, ReadCache.Writer cacheWriter,
+                            boolean quiet) throws IOException {
+        long readNumber = 0;
+        RunReport.Stage stage = this.report.start("merge", null);
 
-            try (BufferedReader br = new BufferedReader(isGzipped(this.tableFile) ?
-                    new InputStreamReader(new GZIPInputStream(fis)) : new InputStreamReader(fis))
-            ) {
-                String line;
+        try (ExternalSorter.Reader reader = sorter.sorted()) {
+            if (! quiet && reader.getNRuns() > 1)
+                System.err.format("\tmerging %d sorted runs\n", reader.getNRuns());
 
-                while ((line = br.readLine()) != null) {
-                    lineNumber++;
+            int chromIndex = -1;
+            Section section = null;
 
-                    if (! quiet && lineNumber % 1000000 == 0)
-                        System.err.format("\t%d lines parsed\n", lineNumber);
+            while (reader.next()) {
+                readNumber++;
 
-                    String[] cols = line.trim().split("\t");
+                if (reader.getChromIndex() != chromIndex) {
+                    chromIndex = reader.getChromIndex();
+                    section = this.sections.get(chroms[chromIndex]);
 
-                    try {
-                        // chr2L	500	1000	1	1	1	0
-                        String chrom = cols[0];
+                    if (cacheWriter != null)
+                        cacheWriter.setChrom(chroms[chromIndex]);
+                }
 
-                        if (this.sections.get(chrom) == null) {
-                            if (skip)
-                                continue;
-                            else {
-                                System.err.format("%s: unknown chromosome '%s' at line %d\n",
-                                        this.tableFile.getPath(), chrom, lineNumber);
-                                System.exit(1);
-                            }
-                        }
+                if (cacheWriter != null)
+                    cacheWriter.add(reader.getStart(), reader.getEnd(), reader.isFwRead());
 
-                        int position = Integer.parseInt(cols[1]);
-                        int intensity = Integer.parseInt(cols[3]);
+                loader.add(chroms[chromIndex], section, reader.getStart(), reader.getEnd(), reader.isFwRead(), readNumber);
+            }
+        }
 
-                        if (intensity < backgroundThreshold)
-                            continue;
+        stage.setLines(readNumber);
+        stage.end();
+    }
+
+    /**
+     * Accumulates reads in input order: read extension, PCR duplicate detection (against the previous read,
+     * or with a DuplicateFilter for unsorted input), and, in streaming mode, background write of each chromosome
+     * once the next one starts.
+     */
+    private class ReadLoader {
+        private final int readExtension;
+        private final File source;
+        private final String unit;
+
+        // With several threads, parsing and duplicate detection stay on this thread; accumulation is sharded
+        private final ReadDispatcher dispatcher;
+        private final ReadDispatcher.Producer producer;
+
+        // Unsorted input only
+        private final DuplicateFilter duplicateFilter;
+
+        // Sections of the current chromosome, for all spans
+        private Section section;
+        private Section[] sections;
+
+        // Chromosome being streamed
+        private String streamChrom;
+        private Section streamSection;
+
+        private Section prevSection;
+        private int prevPos1;
+        private boolean sawFwRead;
+        private boolean sawRvRead;
+        private boolean closed;
+
+        ReadLoader(int readExtension, File source, String unit) {
+            this.readExtension = readExtension;
+            this.source = source;
+            this.unit = unit;
+            this.dispatcher = threads > 1 ? new ReadDispatcher(getAllSections(), threads) : null;
+            this.producer = this.dispatcher != null ? this.dispatcher.newProducer() : null;
+            this.duplicateFilter = unsorted ? new DuplicateFilter() : null;
+            this.section = null;
+            this.sections = null;
+            this.streamChrom = null;
+            this.streamSection = null;
+            this.prevSection = null;
+            this.prevPos1 = -1;
+            this.sawFwRead = false;
+            this.sawRvRead = false;
+            this.closed = false;
+        }
+
+        void add(String chrom, Section section, int pos1, int pos2, boolean isFwRead, long number) {
+            if (section != this.section) {
+                this.section = section;
+                this.sections = wiggleSections.get(chrom);
+            }
+
+            if (streamWriters != null && section != this.streamSection) {
+                if (writtenChroms.contains(chrom)) {
+                    throw new SampleException(String.format("%s: not sorted by chromosome ('%s' seen again at %s %d)",
+                            this.source.getPath(), chrom, this.unit, number));
+                } else if (this.streamSection != null) {
+                    if (this.dispatcher != null) {
+                        this.producer.flush();
+                        this.dispatcher.await();
+                    }
+
+                    if (this.duplicateFilter != null)
+                        this.duplicateFilter.release(this.streamSection);
+
+                    writeInBackground(this.streamChrom);
+                }
+
+                this.streamChrom = chrom;
+                this.streamSection = section;
+            }
+
+            if (this.readExtension != 0) {
+                if (isFwRead)
+                    pos2 = pos1 + this.readExtension;
+                else
+                    pos1 = pos2 - this.readExtension;
+            }
+
+            boolean isUniqueRead = true;
+            if (this.duplicateFilter != null) {
+                // Same key as sorted input: start after extension, and strand
+                isUniqueRead = ! this.duplicateFilter.isDuplicate(section, pos1, isFwRead);
+            } else if (section == this.prevSection && pos1 == this.prevPos1) {
+                if (isFwRead) {
+                    if (this.sawFwRead)
+                        isUniqueRead = false;
+                    else
+                        this.sawFwRead = true;
+                } else if (this.sawRvRead) {
+                    isUniqueRead = false;
+                } else {
+                    this.sawRvRead = true;
+                }
+            } else if (isFwRead) {
+                this.sawFwRead = true;
+                this.sawRvRead = false;
+            } else {
+                this.sawFwRead = false;
+                this.sawRvRead = true;
+            }
+
+            for (Section s: this.sections) {
+                if (this.producer != null)
+                    this.producer.addRead(s, pos1, pos2, isUniqueRead);
+                else
+                    s.addRead(pos1, pos2, isUniqueRead);
+            }
+
+            this.prevSection = section;
+            this.prevPos1 = pos1;
+        }
+
+        void close() {
+            if (this.dispatcher != null) {
+                this.producer.flush();
+                this.closed = true;
+                this.dispatcher.close();
+            }
+        }
+
+        /**
+         * Stops the accumulator threads after an error; reads not accumulated yet are dropped.
+         */
+        void abort() {
+            if (this.dispatcher != null && ! this.closed) {
+                this.closed = true;
+
+                try {
+                    this.dispatcher.close();
+                } catch (RuntimeException | Error e) {
+                    // Already failing: the first error is reported
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a table of 3 + 3 * nReplicates columns: chromosome, start, end, intensity,
+     * then the intensities of the 90%, 70% and 50% samplings (nReplicates columns each).
+     * Lines are parsed in place and localQCs are computed by batches (see LocalQCBatch).
+     */
+    private void loadLocalQCs(int nReplicates, int backgroundThreshold, boolean skip, boolean forgive, boolean quiet) {
+        int lineNumber = 0;
+        RunReport.Stage stage = this.report.start("localqcs", this.tableFile);
+        LocalQCBatch batch = new LocalQCBatch(nReplicates, LocalQCBatch.DEFAULT_SIZE);
+        int nSamplings = batch.getNSamplings();
+
+        try (InputStream is = this.open(this.tableFile, stage)) {
+            TabLineReader reader = new TabLineReader(is);
+            Assembly.Resolver resolver = this.assembly.newResolver();
+
+            while (reader.next()) {
+                lineNumber++;
+
+                if (! quiet && lineNumber % 100000 == 0)
+                    stage.showProgress(lineNumber, "lines");
 
-                        int intensity90 = Integer.parseInt(cols[4]);
-                        int intensity70 = Integer.parseInt(cols[5]);
-                        int intensity50 = Integer.parseInt(cols[6]);
-                        double disp90 = Math.abs(90 - 100. * intensity90 / intensity);
-                        double disp70 = Math.abs(70 - 100. * intensity70 / intensity);
-                        double disp50 = Math.abs(50 - 100. * intensity50 / intensity);
-
-                        if (disp90 < 10 && disp70 < 10 && disp50 < 10)
-                            this.sections.get(chrom).addLocalQC(position, intensity, disp50);
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        if (! forgive) {
-                            System.err.format("%s: 7 columns expected at line %d\n", this.tableFile.getPath(), lineNumber);
-                            System.exit(1);
+                try {
+                    // chr1	3000500	3001000	4	3	3	2	4	3	4   3   2	3	3	0	0	2	1	1
+                    int chromId = reader.isEmpty() ? -1 : resolver.getChromId(reader.getBuffer(), reader.getColumnStart(0), reader.getColumnLength(0));
+
+                    if (chromId < 0) {
+                        if (skip) {
+                            stage.addSkipped();
+                            continue;
                         }
-                    } catch (NumberFormatException e) {
-                        if (! forgive) {
-                            System.err.format("%s: invalid number at line %d\n", this.tableFile.getPath(), lineNumber);
-                            System.exit(1);
+                        else {
+                            throw new SampleException(String.format("%s: unknown chromosome '%s' at line %d",
+                                    this.tableFile.getPath(), reader.isEmpty() ? "" : reader.getColumn(0), lineNumber));
                         }
                     }
+
+                    Section section = this.sectionsById[chromId];
+
+                    int position = reader.parseInt(1);
+                    int intensity = reader.parseInt(3);
+
+                    if (intensity < backgroundThreshold)
+                        continue;
+
+                    for (int i = 0; i < nSamplings; i++)
+                        batch.setSampling(i, reader.parseInt(4 + i));
+
+                    batch.add(section, position, intensity);
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    if (forgive)
+                        stage.addForgiven();
+                    else
+                        throw new SampleException(String.format("%s: %d columns expected at line %d", this.tableFile.getPath(), 4 + nSamplings, lineNumber));
+                } catch (NumberFormatException e) {
+                    if (forgive)
+                        stage.addForgiven();
+                    else
+                        throw new SampleException(String.format("%s: invalid number at line %d", this.tableFile.getPath(), lineNumber));
                 }
             }
+
+            batch.flush();
         } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+            throw new SampleException(this.tableFile.getPath() + ": " + e, e);
         }
+
+        stage.setLines(lineNumber);
+        stage.end();
     }
 
-    private static boolean isGzipped(File file) {
-        boolean gzipped;
+    /**
+     * Opens an input, counting the raw bytes consumed for the progress and the report.
+     */
+    private InputStream open(File file, RunReport.Stage stage) throws IOException {
+        return InputStreams.open(stage.count(InputStreams.isStdin(file) ? System.in : new FileInputStream(file)), this.threads);
+    }
 
-        try (GZIPInputStream gis = new GZIPInputStream(new FileInputStream(file))) {
-            gzipped = true;
-        } catch (ZipException e) {
-            gzipped = false;
-        } catch (IOException e) {
-            gzipped = false;
-            e.printStackTrace();
-            System.exit(1);
+    private ArrayList<Section> getAllSections() {
+        ArrayList<Section> sections = new ArrayList<>();
+
+        for (Section[] chromSections: this.wiggleSections.values())
+            sections.addAll(Arrays.asList(chromSections));
+
+        return sections;
+    }
+
+    /**
+     * Writes a chromosome, one span per writer. LocalQCs, loaded in the sections of the first span, are written for every span.
+     */
+    private void write(ProfileWriter[] writers, String chrom) {
+        Section[] sections = this.wiggleSections.get(chrom);
+
+        for (int i = 1; i < sections.length; i++)
+            sections[i].shareLocalQCs(sections[0]);
+
+        for (int i = 0; i < sections.length; i++) {
+            String name = sections.length > 1 ? "write " + chrom + " (span " + this.wigSpans[i] + ")" : "write " + chrom;
+            RunReport.Stage stage = this.report.start(name, null);
+            stage.setLines(sections[i].getNWiggles());
+            stage.addBytes(writers[i].write(chrom, sections[i]));
+            stage.end();
         }
+    }
 
-        return gzipped;
+    private void writeInBackground(String chrom) {
+        // At most one write in flight, so finished sections do not pile up in memory
+        this.waitForWrite();
+        this.writtenChroms.add(chrom);
+        this.pendingWrite = this.writerThread.submit(() -> this.write(this.streamWriters, chrom));
     }
 
-    void toHDF5(File file, boolean useFiveReps) {
-        IHDF5WriterConfigurator config = HDF5Factory.configure(file);
-        config.overwrite();
-        config.dontUseExtendableDataTypes();
-        IHDF5Writer writer = config.writer();
-        HDF5IntStorageFeatures intFeatures = HDF5IntStorageFeatures.createDeflation(HDF5IntStorageFeatures.DEFAULT_DEFLATION_LEVEL);
-        HDF5GenericStorageFeatures features = HDF5GenericStorageFeatures.createDeflation(HDF5GenericStorageFeatures.DEFAULT_DEFLATION_LEVEL);
+    private void waitForWrite() {
+        if (this.pendingWrite != null) {
+            try {
+                this.pendingWrite.get();
+            } catch (InterruptedException e) {
+                throw new SampleException("interrupted while writing", e);
+            } catch (ExecutionException e) {
+                throw new SampleException("writing failed: " + e.getCause(), e.getCause());
+            } finally {
+                this.pendingWrite = null;
+            }
+        }
+    }
 
+    /**
+     * Update mode: adds the wiggles of all sections to the files given to openUpdate().
+     */
+    void updateHDF5() {
         for (String chrom: this.sections.keySet()) {
-            Section section = this.sections.get(chrom);
+            Section[] sections = this.wiggleSections.get(chrom);
+
+            for (int i = 0; i < sections.length; i++) {
+                String name = sections.length > 1 ? "update " + chrom + " (span " + this.wigSpans[i] + ")" : "update " + chrom;
+                RunReport.Stage stage = this.report.start(name, null);
+                stage.setLines(sections[i].getNWiggles());
+                stage.addBytes(this.updaters[i].update(chrom, sections[i]));
+                stage.end();
+            }
+        }
 
-            if (useFiveReps)
-                writer.compound().writeArray("/" + chrom + "/localqcs", section.getLocalQC5s(), features);
-            else
-                writer.compound().writeArray("/" + chrom + "/localqcs", section.getLocalQCs(), features);
+        for (ProfileUpdater updater: this.updaters)
+            updater.close();
+    }
+
+    /**
+     * Writes all sections to HDF5. In streaming mode, only the sections not written yet
+     * are written, to the file given to openStream().
+     */
+    void toHDF5(File file, boolean useFiveReps, StorageOptions storage, int[] zoomSpans) {
+        if (this.streamWriters != null) {
+            for (String chrom: this.sections.keySet()) {
+                if (! this.writtenChroms.contains(chrom))
+                    this.writeInBackground(chrom);
+            }
+
+            this.waitForWrite();
+            this.writerThread.shutdown();
+
+            for (ProfileWriter writer: this.streamWriters)
+                writer.close();
 
-            writer.int32().writeMatrix("/" + chrom + "/wigs/", section.getWiggles(), intFeatures);
-            writer.int32().setAttr("/" + chrom, "size", section.getSize());
-            writer.int32().setAttr("/" + chrom, "span", section.getWigSpan());
-            section.destroy();
+            return;
         }
 
+        File[] files = getOutputFiles(file, this.wigSpans);
+        ProfileWriter[] writers = new ProfileWriter[files.length];
+
+        for (int i = 0; i < files.length; i++)
+            writers[i] = new ProfileWriter(files[i], useFiveReps, storage, zoomSpans);
+
+        for (String chrom: this.sections.keySet())
+            this.write(writers, chrom);
+
+        for (ProfileWriter writer: writers)
+            writer.close();
+    }
+
+    /**
+     * Releases the files and the writer thread of a sample that failed (see SampleException),
+     * so that a batch can go on with other samples. Output files are left incomplete.
+     */
+    void abort() {
+        if (this.writerThread != null) {
+            try {
+                this.waitForWrite();
+            } catch (SampleException e) {
+                // Already failing: the first error is reported
+            }
+
+            this.writerThread.shutdown();
+        }
+
+        if (this.streamWriters != null) {
+            for (ProfileWriter writer: this.streamWriters) {
+                if (writer != null)
+                    writer.close();
+            }
+        }
+
+        if (this.updaters != null) {
+            for (ProfileUpdater updater: this.updaters) {
+                if (updater != null)
+                    updater.close();
+            }
+        }
     }
 }
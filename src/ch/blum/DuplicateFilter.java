@@ -0,0 +1,78 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Detects PCR duplicates whatever the order of the reads: a read is a duplicate if a read with the same
+ * position and strand was seen before on the same chromosome (the position is the start after extension,
+ * as for sorted input).
+ * Each chromosome has a bitmap with two bits (forward, reverse) per position, allocated on its first read:
+ * size / 4 bytes, e.g. 62 MB for the human chromosome 1.
+ * Positions outside the chromosome (e.g. reverse reads extended past its start) are kept in a set instead.
+ */
+public class DuplicateFilter {
+    private final HashMap<Section, long[]> bitmaps;
+    private final HashMap<Section, HashSet<Long>> outOfBounds;
+
+    // Bitmap of the previous read
+    private Section section;
+    private long[] bitmap;
+
+    public DuplicateFilter() {
+        this.bitmaps = new HashMap<>();
+        this.outOfBounds = new HashMap<>();
+        this.section = null;
+        this.bitmap = null;
+    }
+
+    /**
+     * Estimated heap used by the bitmap of a chromosome, in bytes.
+     */
+    public static long estimateMemory(int size) {
+        return ((size + 1L) * 2 + 63) / 64 * 8;
+    }
+
+    public boolean isDuplicate(Section section, int position, boolean isFwRead) {
+        if (section != this.section) {
+            this.section = section;
+            this.bitmap = this.bitmaps.get(section);
+
+            if (this.bitmap == null) {
+                this.bitmap = new long[(int) (estimateMemory(section.getSize()) / 8)];
+                this.bitmaps.put(section, this.bitmap);
+            }
+        }
+
+        long bit = position * 2L + (isFwRead ? 0 : 1);
+
+        if (position < 0 || position > section.getSize())
+            return ! this.outOfBounds.computeIfAbsent(section, s -> new HashSet<>()).add(bit);
+
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+
+        if ((this.bitmap[word] & mask) != 0)
+            return true;
+
+        this.bitmap[word] |= mask;
+        return false;
+    }
+
+    /**
+     * Releases the bitmap of a chromosome whose reads have all been seen.
+     */
+    public void release(Section section) {
+        this.bitmaps.remove(section);
+        this.outOfBounds.remove(section);
+
+        if (section == this.section) {
+            this.section = null;
+            this.bitmap = null;
+        }
+    }
+}
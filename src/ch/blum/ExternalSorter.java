@@ -0,0 +1,387 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sorts reads by chromosome index, start, strand (forward first) and end with bounded memory:
+ * reads are buffered in runs, runs are sorted in parallel and spilled to temporary files,
+ * and runs are merged when reading. If all reads fit in one run, nothing is written to disk.
+ *
+ * A read is two longs: (chromosome index << 32 | start) and (strand << 32 | end), so that forward reads
+ * with the same start are adjacent, whatever their end (see BinnedProfile.ReadLoader).
+ * Run files hold the number of reads, then the differences between consecutive reads as varints.
+ */
+public class ExternalSorter {
+    public static final int DEFAULT_RUN_SIZE = 1 << 24;
+
+    private final File tmpDir;
+    private final int runSize;
+    private final ExecutorService executor;
+    private final ArrayList<Future<File>> runs;
+
+    // Run buffers: at most one per thread, recycled once a run is written
+    private final BlockingQueue<long[]> freeBuffers;
+    private int nBuffers;
+    private final int maxBuffers;
+    private long[] buffer;
+    private int n;
+
+    /**
+     * @param runSize number of reads per run (16 bytes each); up to 'threads' runs are in memory at once
+     */
+    public ExternalSorter(File tmpDir, int runSize, int threads) {
+        this.tmpDir = tmpDir;
+        this.runSize = runSize;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.runs = new ArrayList<>();
+        this.freeBuffers = new ArrayBlockingQueue<>(threads);
+        this.maxBuffers = threads;
+        this.nBuffers = 1;
+        this.buffer = new long[runSize * 2];
+        this.n = 0;
+    }
+
+    public void add(int chromIndex, int start, int end, boolean isFwRead) throws IOException {
+        if (this.n == this.runSize)
+            this.spill();
+
+        this.buffer[this.n*2] = (long) chromIndex << 32 | ((start ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        this.buffer[this.n*2+1] = (isFwRead ? 0 : 1L << 32) | ((end ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        this.n++;
+    }
+
+    /**
+     * Sorts and writes the current run in the background, and continues in another buffer.
+     */
+    private void spill() throws IOException {
+        this.submit(this.buffer, this.n);
+
+        try {
+            if (this.nBuffers < this.maxBuffers) {
+                this.buffer = new long[this.runSize * 2];
+                this.nBuffers++;
+            } else
+                this.buffer = this.freeBuffers.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+
+        this.n = 0;
+    }
+
+    private void submit(long[] run, int count) {
+        this.runs.add(this.executor.submit(() -> {
+            try {
+                sort(run, 0, count);
+                return this.write(run, count);
+            } finally {
+                this.freeBuffers.add(run);
+            }
+        }));
+    }
+
+    private File write(long[] run, int count) throws IOException {
+        File file = File.createTempFile("h5ngsqc-", ".run", this.tmpDir);
+        file.deleteOnExit();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            long prevKey = 0;
+            long prevValue = 0;
+
+            out.writeInt(count);
+
+            for (int i = 0; i < count; i++) {
+                long key = run[i*2];
+                long value = run[i*2+1];
+                writeVarint(out, key - prevKey);
+                writeVarint(out, zigzag(value - prevValue));
+                prevKey = key;
+                prevValue = value;
+            }
+        }
+
+        return file;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.write((int) value);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    /**
+     * Returns the reads in sorted order. No read can be added afterwards.
+     */
+    public Reader sorted() throws IOException {
+        if (this.runs.isEmpty()) {
+            this.executor.shutdown();
+            sort(this.buffer, 0, this.n);
+            return new Reader(this.buffer, this.n);
+        }
+
+        // Last run: no buffer is needed for more reads
+        if (this.n > 0)
+            this.submit(this.buffer, this.n);
+
+        this.buffer = null;
+        ArrayList<File> files = new ArrayList<>();
+
+        try {
+            for (Future<File> run: this.runs)
+                files.add(run.get());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            this.executor.shutdown();
+            this.freeBuffers.clear();
+        }
+
+        return new Reader(files);
+    }
+
+    /**
+     * Discards the reads after an error: waits for the runs being written, and deletes them.
+     */
+    public void abort() {
+        this.executor.shutdown();
+        this.buffer = null;
+
+        for (Future<File> run: this.runs) {
+            try {
+                run.get().delete();
+            } catch (InterruptedException | ExecutionException e) {
+                // Nothing to delete
+            }
+        }
+
+        this.runs.clear();
+    }
+
+    private static int compare(long key1, long value1, long key2, long value2) {
+        int c = Long.compare(key1, key2);
+        return c != 0 ? c : Long.compare(value1, value2);
+    }
+
+    private static void swap(long[] a, int i, int j) {
+        long key = a[i*2];
+        long value = a[i*2+1];
+        a[i*2] = a[j*2];
+        a[i*2+1] = a[j*2+1];
+        a[j*2] = key;
+        a[j*2+1] = value;
+    }
+
+    /**
+     * Sorts the reads [from, to): quicksort with three-way partitioning (PCR duplicates give many equal keys).
+     */
+    static void sort(long[] a, int from, int to) {
+        while (to - from > 16) {
+            // Median of three
+            int mid = (from + to) >>> 1;
+            if (compare(a[mid*2], a[mid*2+1], a[from*2], a[from*2+1]) < 0)
+                swap(a, mid, from);
+            if (compare(a[(to-1)*2], a[(to-1)*2+1], a[from*2], a[from*2+1]) < 0)
+                swap(a, to - 1, from);
+            if (compare(a[(to-1)*2], a[(to-1)*2+1], a[mid*2], a[mid*2+1]) < 0)
+                swap(a, to - 1, mid);
+
+            long pivotKey = a[mid*2];
+            long pivotValue = a[mid*2+1];
+            int lt = from;
+            int gt = to - 1;
+            int i = from;
+
+            while (i <= gt) {
+                int c = compare(a[i*2], a[i*2+1], pivotKey, pivotValue);
+
+                if (c < 0)
+                    swap(a, lt++, i++);
+                else if (c > 0)
+                    swap(a, i, gt--);
+                else
+                    i++;
+            }
+
+            // Recurse on the smaller part
+            if (lt - from < to - gt - 1) {
+                sort(a, from, lt);
+                from = gt + 1;
+            } else {
+                sort(a, gt + 1, to);
+                to = lt;
+            }
+        }
+
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && compare(a[j*2], a[j*2+1], a[(j-1)*2], a[(j-1)*2+1]) < 0; j--)
+                swap(a, j, j - 1);
+        }
+    }
+
+    /**
+     * Sorted reads, from memory (single run) or merged from run files.
+     */
+    public static class Reader implements AutoCloseable {
+        private final long[] buffer;
+        private final int n;
+        private int i;
+
+        private final ArrayList<File> files;
+        private final PriorityQueue<Run> queue;
+
+        private long key;
+        private long value;
+
+        private Reader(long[] buffer, int n) {
+            this.buffer = buffer;
+            this.n = n;
+            this.i = 0;
+            this.files = null;
+            this.queue = null;
+        }
+
+        private Reader(ArrayList<File> files) throws IOException {
+            this.buffer = null;
+            this.n = 0;
+            this.files = files;
+            this.queue = new PriorityQueue<>(files.size(), (a, b) -> compare(a.key, a.value, b.key, b.value));
+
+            for (File file: files) {
+                Run run = new Run(file);
+
+                if (run.next())
+                    this.queue.add(run);
+                else
+                    run.close();
+            }
+        }
+
+        public boolean next() throws IOException {
+            if (this.queue == null) {
+                if (this.i == this.n)
+                    return false;
+
+                this.key = this.buffer[this.i*2];
+                this.value = this.buffer[this.i*2+1];
+                this.i++;
+                return true;
+            }
+
+            Run run = this.queue.poll();
+
+            if (run == null)
+                return false;
+
+            this.key = run.key;
+            this.value = run.value;
+
+            if (run.next())
+                this.queue.add(run);
+            else
+                run.close();
+
+            return true;
+        }
+
+        public int getNRuns() {
+            return this.files != null ? this.files.size() : 1;
+        }
+
+        public int getChromIndex() {
+            return (int) (this.key >>> 32);
+        }
+
+        public int getStart() {
+            return (int) this.key ^ Integer.MIN_VALUE;
+        }
+
+        public int getEnd() {
+            return (int) this.value ^ Integer.MIN_VALUE;
+        }
+
+        public boolean isFwRead() {
+            return (this.value >>> 32) == 0;
+        }
+
+        /**
+         * Deletes the run files.
+         */
+        @Override
+        public void close() throws IOException {
+            if (this.queue != null) {
+                for (Run run: this.queue)
+                    run.close();
+
+                this.queue.clear();
+
+                for (File file: this.files)
+                    file.delete();
+            }
+        }
+    }
+
+    private static class Run {
+        private final DataInputStream in;
+        private int remaining;
+        private long key;
+        private long value;
+
+        Run(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            this.remaining = this.in.readInt();
+            this.key = 0;
+            this.value = 0;
+        }
+
+        boolean next() throws IOException {
+            if (this.remaining == 0)
+                return false;
+
+            this.key += readVarint(this.in);
+            this.value += unzigzag(readVarint(this.in));
+            this.remaining--;
+            return true;
+        }
+
+        void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
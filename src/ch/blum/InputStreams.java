@@ -0,0 +1,354 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Opens input files, transparently decompressing gzip-compressed ones.
+ * Decompression runs on background threads: BGZF files (as written by bgzip)
+ * are inflated block by block in parallel, other gzip files on a single thread.
+ * Decompressed data is handed to the parsing thread through a bounded queue.
+ */
+public class InputStreams {
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final int HEADER_SIZE = 18;
+
+    /**
+     * Opens a file, or the standard input if its path is '-'. Named pipes are supported:
+     * compression is detected from the first bytes of the stream, which is never reopened.
+     */
+    public static InputStream open(File file, int threads) throws IOException {
+        return open(isStdin(file) ? System.in : new FileInputStream(file), threads);
+    }
+
+    public static boolean isStdin(File file) {
+        return file.getPath().equals("-");
+    }
+
+    public static InputStream open(InputStream in, int threads) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(in, 1 << 16);
+        byte[] header = new byte[HEADER_SIZE];
+
+        bis.mark(HEADER_SIZE);
+        int n = readFully(bis, header, 0, HEADER_SIZE);
+        bis.reset();
+
+        if (n < 2 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b)
+            return bis;
+        else if (isBgzfHeader(header, n))
+            return new BgzfInputStream(bis, threads);
+        else
+            return new AsyncInputStream(new GZIPInputStream(bis, 1 << 16));
+    }
+
+    /**
+     * BGZF blocks are gzip members with an extra field holding a 'BC' subfield (the block size).
+     */
+    private static boolean isBgzfHeader(byte[] header, int n) {
+        return n == HEADER_SIZE
+                && header[2] == 8
+                && (header[3] & 4) != 0
+                && (header[10] & 0xff | (header[11] & 0xff) << 8) == 6
+                && header[12] == 'B' && header[13] == 'C'
+                && (header[14] & 0xff | (header[15] & 0xff) << 8) == 2;
+    }
+
+    private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        int total = 0;
+
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+
+            if (n < 0)
+                break;
+
+            total += n;
+        }
+
+        return total;
+    }
+
+    /**
+     * Base class for streams fed by a background thread with chunks of decompressed bytes.
+     */
+    private static abstract class QueuedInputStream extends InputStream {
+        private final Thread thread;
+        private byte[] chunk;
+        private int chunkPos;
+        private boolean eof;
+        private volatile boolean closed;
+
+        QueuedInputStream(String name) {
+            this.chunk = new byte[0];
+            this.chunkPos = 0;
+            this.eof = false;
+            this.closed = false;
+            this.thread = new Thread(this::produce, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            this.thread.start();
+        }
+
+        boolean isClosed() {
+            return this.closed;
+        }
+
+        /**
+         * Runs on the background thread: decompresses the input and enqueues the chunks.
+         */
+        abstract void produce();
+
+        /**
+         * Returns the next chunk of decompressed bytes, or null at the end of the stream.
+         */
+        abstract byte[] nextChunk() throws IOException;
+
+        abstract void closeSource() throws IOException;
+
+        private boolean fill() throws IOException {
+            while (! this.eof && this.chunkPos == this.chunk.length) {
+                byte[] next = this.nextChunk();
+
+                if (next == null)
+                    this.eof = true;
+                else {
+                    this.chunk = next;
+                    this.chunkPos = 0;
+                }
+            }
+
+            return ! this.eof;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.fill() ? this.chunk[this.chunkPos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            else if (! this.fill())
+                return -1;
+
+            int n = Math.min(len, this.chunk.length - this.chunkPos);
+            System.arraycopy(this.chunk, this.chunkPos, b, off, n);
+            this.chunkPos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.closed = true;
+            this.thread.interrupt();
+            this.closeSource();
+        }
+    }
+
+    /**
+     * Reads a stream (typically a GZIPInputStream) on a background thread.
+     */
+    private static class AsyncInputStream extends QueuedInputStream {
+        private static final byte[] EOF = new byte[0];
+        private final InputStream source;
+        private final BlockingQueue<byte[]> queue;
+        private volatile Throwable error;
+
+        AsyncInputStream(InputStream source) {
+            super("gzip-reader");
+            this.source = source;
+            this.queue = new ArrayBlockingQueue<>(8);
+            this.error = null;
+            this.start();
+        }
+
+        @Override
+        void produce() {
+            try {
+                while (! this.isClosed()) {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int n = readFully(this.source, buffer, 0, CHUNK_SIZE);
+
+                    if (n > 0)
+                        this.queue.put(n == CHUNK_SIZE ? buffer : Arrays.copyOf(buffer, n));
+
+                    if (n < CHUNK_SIZE)
+                        break;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                // Including RuntimeException and Error (e.g. OutOfMemoryError): the reader must not wait forever
+                this.error = e;
+            }
+
+            try {
+                this.queue.put(EOF);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        @Override
+        byte[] nextChunk() throws IOException {
+            byte[] chunk;
+
+            try {
+                chunk = this.queue.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+
+            if (chunk != EOF)
+                return chunk;
+
+            // Leave the marker for subsequent calls
+            this.queue.offer(EOF);
+
+            if (this.error instanceof IOException)
+                throw (IOException) this.error;
+            else if (this.error instanceof RuntimeException)
+                throw (RuntimeException) this.error;
+            else if (this.error instanceof Error)
+                throw (Error) this.error;
+            else if (this.error != null)
+                throw new IOException(this.error);
+
+            return null;
+        }
+
+        @Override
+        void closeSource() throws IOException {
+            this.source.close();
+        }
+    }
+
+    /**
+     * Reads BGZF blocks on a background thread and inflates them in parallel,
+     * keeping the original block order.
+     */
+    private static class BgzfInputStream extends QueuedInputStream {
+        private static final Future<byte[]> EOF = CompletableFuture.completedFuture(null);
+        private final InputStream source;
+        private final ExecutorService executor;
+        private final BlockingQueue<Future<byte[]>> queue;
+
+        BgzfInputStream(InputStream source, int threads) {
+            super("bgzf-reader");
+            this.source = source;
+            this.executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "bgzf-inflater");
+                t.setDaemon(true);
+                return t;
+            });
+            this.queue = new ArrayBlockingQueue<>(threads * 4);
+            this.start();
+        }
+
+        @Override
+        void produce() {
+            byte[] header = new byte[HEADER_SIZE];
+
+            try {
+                while (! this.isClosed()) {
+                    int n = readFully(this.source, header, 0, HEADER_SIZE);
+
+                    if (n == 0)
+                        break;
+                    else if (! isBgzfHeader(header, n))
+                        throw new IOException("invalid BGZF block");
+
+                    // BSIZE is the total block size minus 1
+                    int blockSize = (header[16] & 0xff | (header[17] & 0xff) << 8) + 1;
+
+                    // At least the CRC32 and ISIZE fields after the header
+                    if (blockSize < HEADER_SIZE + 8)
+                        throw new IOException("invalid BGZF block");
+
+                    byte[] block = new byte[blockSize - HEADER_SIZE];
+
+                    if (readFully(this.source, block, 0, block.length) != block.length)
+                        throw new EOFException("truncated BGZF block");
+
+                    this.queue.put(this.executor.submit(() -> inflate(block)));
+                }
+
+                this.queue.put(EOF);
+            } catch (InterruptedException ignored) {
+            } catch (Throwable e) {
+                // Including RuntimeException and Error (e.g. OutOfMemoryError): the reader must not wait forever
+                CompletableFuture<byte[]> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                try {
+                    this.queue.put(failed);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Inflates a block (compressed data followed by CRC32 and ISIZE) and checks its CRC.
+         */
+        private static byte[] inflate(byte[] block) throws IOException {
+            int n = block.length;
+            int crc = block[n-8] & 0xff | (block[n-7] & 0xff) << 8 | (block[n-6] & 0xff) << 16 | (block[n-5] & 0xff) << 24;
+            int size = block[n-4] & 0xff | (block[n-3] & 0xff) << 8 | (block[n-2] & 0xff) << 16 | (block[n-1] & 0xff) << 24;
+            byte[] data = new byte[size];
+            Inflater inflater = new Inflater(true);
+
+            try {
+                inflater.setInput(block, 0, n - 8);
+                if (size > 0 && inflater.inflate(data) != size)
+                    throw new IOException("corrupt BGZF block");
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt BGZF block", e);
+            } finally {
+                inflater.end();
+            }
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            if ((int) crc32.getValue() != crc)
+                throw new IOException("BGZF block CRC mismatch");
+
+            return data;
+        }
+
+        @Override
+        byte[] nextChunk() throws IOException {
+            try {
+                Future<byte[]> future = this.queue.take();
+
+                if (future == EOF) {
+                    this.queue.offer(EOF);
+                    return null;
+                }
+
+                return future.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        void closeSource() throws IOException {
+            this.executor.shutdownNow();
+            this.source.close();
+        }
+    }
+}
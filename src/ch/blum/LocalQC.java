@@ -13,11 +13,40 @@ public class LocalQC {
         this.dispersion = 0;
     }
 
+    /**
+     * Resets the localQC to an empty bin.
+     */
+    public void clear() {
+        this.update(0, 0);
+    }
+
     public void update(int intensity, double dispersion) {
         this.intensity = intensity;
         this.dispersion = dispersion;
     }
 
+    /**
+     * Returns the dispersion (in %) of the intensity of a random sampling of percent% of the reads.
+     */
+    public static double getDispersion(int percent, int intensity, int sampledIntensity) {
+        return Math.abs(percent - 100. * sampledIntensity / intensity);
+    }
+
+    /**
+     * A bin is robust if the dispersions of the 90%, 70% and 50% samplings are all below 10%.
+     */
+    public static boolean isRobust(double disp90, double disp70, double disp50) {
+        return disp90 < 10 && disp70 < 10 && disp50 < 10;
+    }
+
+    public int getIntensity() {
+        return intensity;
+    }
+
+    public double getDispersion() {
+        return dispersion;
+    }
+
     public String toString() {
         return Integer.toString(this.intensity) + " " + Double.toString(this.dispersion);
     }
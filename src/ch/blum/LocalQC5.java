@@ -12,8 +12,17 @@ public class LocalQC5 extends LocalQC {
         this.flag = 0;
     }
 
+    @Override
+    public void clear() {
+        this.update(0, 0, 0);
+    }
+
     public void update(int intensity, double dispersion, int flag) {
         this.update(intensity, dispersion);
         this.flag = flag;
     }
+
+    public int getFlag() {
+        return flag;
+    }
 }
@@ -0,0 +1,122 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+/**
+ * Rows of a localQC table, held in reusable primitive columns until the batch is full.
+ * Dispersions and flags are then computed for the whole batch in one loop,
+ * and the localQCs are added to their sections.
+ *
+ * With one replicate, a bin is kept if it is robust, and its dispersion is the 50% dispersion.
+ * With five replicates, every bin is kept: its dispersion is the mean 50% dispersion of the robust replicates,
+ * and its flag has one bit set per robust replicate (see LocalQC5).
+ */
+public class LocalQCBatch {
+    public static final int DEFAULT_SIZE = 4096;
+
+    private final int nReplicates;
+    private final int capacity;
+    private final Section[] sections;
+    private final int[] positions;
+    private final int[] intensities;
+    private final double[] dispersions;
+    private final int[] flags;
+
+    // Sampled intensities of each row: 90% replicates, then 70% replicates, then 50% replicates
+    private final int[] samplings;
+    private int n;
+
+    public LocalQCBatch(int nReplicates, int capacity) {
+        this.nReplicates = nReplicates;
+        this.capacity = capacity;
+        this.sections = new Section[capacity];
+        this.positions = new int[capacity];
+        this.intensities = new int[capacity];
+        this.dispersions = new double[capacity];
+        this.flags = new int[capacity];
+        this.samplings = new int[capacity * 3 * nReplicates];
+        this.n = 0;
+    }
+
+    public int getNSamplings() {
+        return 3 * this.nReplicates;
+    }
+
+    /**
+     * Sets the i-th sampled intensity of the next row (see getNSamplings()).
+     */
+    public void setSampling(int i, int intensity) {
+        this.samplings[this.n * 3 * this.nReplicates + i] = intensity;
+    }
+
+    /**
+     * Adds the next row, once its samplings are set. Flushes the batch if it is full.
+     */
+    public void add(Section section, int position, int intensity) {
+        this.sections[this.n] = section;
+        this.positions[this.n] = position;
+        this.intensities[this.n] = intensity;
+
+        if (++this.n == this.capacity)
+            this.flush();
+    }
+
+    /**
+     * Computes the localQCs of the rows of the batch, adds them to their sections, and empties the batch.
+     */
+    public void flush() {
+        if (this.nReplicates == 1)
+            this.computeOne();
+        else
+            this.computeReplicates();
+
+        for (int i = 0; i < this.n; i++) {
+            if (this.nReplicates > 1)
+                this.sections[i].addLocalQC5(this.positions[i], this.intensities[i], this.dispersions[i], this.flags[i]);
+            else if (this.flags[i] != 0)
+                this.sections[i].addLocalQC(this.positions[i], this.intensities[i], this.dispersions[i]);
+
+            this.sections[i] = null;
+        }
+
+        this.n = 0;
+    }
+
+    private void computeOne() {
+        for (int i = 0, j = 0; i < this.n; i++, j += 3) {
+            int intensity = this.intensities[i];
+            double disp90 = LocalQC.getDispersion(90, intensity, this.samplings[j]);
+            double disp70 = LocalQC.getDispersion(70, intensity, this.samplings[j+1]);
+            double disp50 = LocalQC.getDispersion(50, intensity, this.samplings[j+2]);
+
+            this.dispersions[i] = disp50;
+            this.flags[i] = LocalQC.isRobust(disp90, disp70, disp50) ? 1 : 0;
+        }
+    }
+
+    private void computeReplicates() {
+        int nReps = this.nReplicates;
+
+        for (int i = 0, j = 0; i < this.n; i++, j += 3 * nReps) {
+            int intensity = this.intensities[i];
+            double sumDisp50 = 0;
+            int nValid = 0;
+
+            for (int k = 0; k < nReps; k++) {
+                double disp90 = LocalQC.getDispersion(90, intensity, this.samplings[j+k]);
+                double disp70 = LocalQC.getDispersion(70, intensity, this.samplings[j+nReps+k]);
+                double disp50 = LocalQC.getDispersion(50, intensity, this.samplings[j+2*nReps+k]);
+
+                if (LocalQC.isRobust(disp90, disp70, disp50)) {
+                    nValid++;
+                    sumDisp50 += disp50;
+                }
+            }
+
+            this.dispersions[i] = nValid > 0 ? sumDisp50 / nValid : 0;
+            this.flags[i] = (1 << nValid) - 1;
+        }
+    }
+}
@@ -5,39 +5,89 @@ package ch.blum;
  */
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
 
 public class Main {
 
     private static void showHelp() {
         System.out.println("\nUsage: java -jar h5ngsqc.jar BED TABLE CHROMSIZES HDF5 [options]");
-        System.out.format("    %-15salignment file in the BED format. May be gzip-compressed.\n", "BED");
-        System.out.format("    %-15stab-separated file containing the intensity for three random samplings. May be gzip-compressed.\n", "TABLE");
+        System.out.println("       java -jar h5ngsqc.jar query HDF5 REGION [REGION ...] [options]");
+        System.out.println("       java -jar h5ngsqc.jar batch MANIFEST CHROMSIZES [options]");
+        System.out.println("       java -jar h5ngsqc.jar update BED CHROMSIZES HDF5 [options]");
+        System.out.println("       java -jar h5ngsqc.jar merge OUTPUT INPUT [INPUT ...] [options]");
+        System.out.println("       java -jar h5ngsqc.jar generate OUTDIR [options]");
+        System.out.format("    %-15salignment file in the BED format, or '-' for the standard input. May be gzip-compressed.\n", "BED");
+        System.out.format("    %-15stab-separated file containing the intensity for three random samplings, or '-' for the standard input. May be gzip-compressed.\n", "TABLE");
         System.out.format("    %-15stab-separated file containing the chromosome sizes for the genome assembly.\n", "CHROMSIZES");
-        System.out.format("    %-15soutput HDF5 file\n\n", "HDF5");
-        System.out.format("Options: -s, --span INT    span/resolution in bp for wiggles (default: 50).\n");
+        System.out.format("    %-15soutput HDF5 file (update mode: existing file, to which the wiggles of BED are added)\n", "HDF5");
+        System.out.format("    %-15stab-separated file, one sample per line: BED TABLE HDF5 [REPORT]\n\n", "MANIFEST");
+        System.out.format("Options: -s, --span LIST   comma-separated spans/resolutions in bp for wiggles (default: 50). With several spans, HDF5.SPAN files are written.\n");
         System.out.format("         -e, --ext INT     read extension in bp (default: 150).\n");
+        System.out.format("         --diff            accumulate reads as start/end differences: constant cost per read, whatever the span/extension.\n");
         System.out.format("         --bg INT          global background threshold for localQCs (default: 0).\n");
+        System.out.format("         -t, --threads INT number of threads for decompressing BGZF inputs and accumulating reads (default: 1).\n");
         System.out.format("         -5                switch to '5-replicates' mode. TABLE file is expected to contain more columns.\n");
+        System.out.format("         --unsorted        detect PCR duplicates in any read order: BED does not need to be sorted by position.\n");
+        System.out.format("         --sort            sort the reads by chromosome and position before accumulating them: BED does not need to be sorted.\n");
+        System.out.format("         --sort-buffer INT memory in MB for sorting, per thread (default: 256); larger inputs are sorted in runs spilled to disk.\n");
+        System.out.format("         --tmp-dir DIR     directory of the sorted runs and mapped counters (default: system temporary directory).\n");
+        System.out.format("         --mmap            keep wiggle counters off-heap, in memory-mapped files of --tmp-dir (for very small spans).\n");
+        System.out.format("         --stream          write each chromosome as soon as it is loaded. BED file must be sorted by chromosome.\n");
+        System.out.format("         --chunk INT       number of rows per HDF5 chunk (default: %d).\n", StorageOptions.DEFAULT_CHUNK_SIZE);
+        System.out.format("         --codec STR       HDF5 compression: none, deflate[:LEVEL], or scaleoffset[:LEVEL] (default: deflate:%d).\n", StorageOptions.DEFAULT_LEVEL);
+        System.out.format("                           scaleoffset applies to integers; other datasets are deflated at LEVEL (default: %d).\n", StorageOptions.DEFAULT_LEVEL);
+        System.out.format("         --no-shuffle      do not apply the shuffle filter before deflate (never applied after scaleoffset).\n");
+        System.out.format("         --sparse-localqcs store only the bins having a localQC (bin, intensity, dispersion, flag columns).\n");
+        System.out.format("         --zoom LIST       comma-separated spans in bp of the wiggle zoom levels, or 'none' (default: 500,5000,50000,500000).\n");
+        System.out.format("         --cache FILE      binary copy of the BED reads: written on the first run, read instead of BED on later runs.\n");
+        System.out.format("         --report FILE     write timing, throughput and memory of each stage to FILE (JSON).\n");
+        System.out.format("         --report-attrs    also store the report as the 'report' attribute of the HDF5 root group.\n");
+        System.out.format("         -j, --jobs INT    batch mode: maximum number of samples processed concurrently (default: number of processors).\n");
+        System.out.format("         --memory INT      batch mode: heap budget in MB shared by concurrent samples (default: 80%% of the maximum heap).\n");
+        System.out.format("         --aliases FILE    tab-separated names of the same chromosome (e.g. chrM MT), one line per chromosome: BED and TABLE may use any of them.\n");
         System.out.format("         --skip            skip reads/bins on unknown chromosome instead of stopping the program.\n");
         System.out.format("         --forgive         skip invalid lines instead of stopping the program.\n");
         System.out.format("         --quiet           do not display progress messages.\n");
     }
 
+    /**
+     * Regular files, named pipes, and '-' (standard input) can be read.
+     */
+    private static boolean isReadable(File file) {
+        return InputStreams.isStdin(file) || (file.exists() && ! file.isDirectory());
+    }
+
     public static void main(String[] args) {
+        // Subcommands
+        if (args.length > 0 && args[0].equals("query")) {
+            QueryCommand.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if (args.length > 0 && args[0].equals("merge")) {
+            MergeCommand.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        } else if (args.length > 0 && args[0].equals("generate")) {
+            SyntheticGenerator.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         // Positional arguments
         File bedFile = null;
         File tableFile = null;
         File chromSizesFile = null;
         File outFile = null;
 
+        // Batch mode: samples are read from a manifest
+        boolean batch = args.length > 0 && args[0].equals("batch");
+        File manifestFile = null;
+
+        // Update mode: the reads of BED are added to an existing output
+        boolean update = args.length > 0 && args[0].equals("update");
+
         // Optional arguments
-        int wigSpan = 50;
-        int readExtension = 150;
-        int backgroundThreshold = 0;
-        boolean useFiveReps = false;
-        boolean skip = false;
-        boolean forgive = false;
-        boolean quiet = false;
+        Options options = new Options();
 
         int positionalCounter = 0;
 
@@ -48,20 +98,32 @@ public class Main {
             }
         }
 
-        for (int i = 0; i < args.length; i++) {
+        for (int i = batch || update ? 1 : 0; i < args.length; i++) {
             String arg = args[i];
 
             if (arg.equals("-s") || arg.equals("--span")) {
                 if (i + 1 < args.length) {
+                    String[] values = args[i+1].split(",");
+                    options.wigSpans = new int[values.length];
+
                     try {
-                        wigSpan = Integer.parseInt(args[i+1]);
+                        for (int j = 0; j < values.length; j++) {
+                            options.wigSpans[j] = Integer.parseInt(values[j]);
 
-                        if (wigSpan <= 0) {
-                            System.err.format("option '%s' requires a non-null positive number\n", arg);
-                            System.exit(1);
+                            if (options.wigSpans[j] <= 0) {
+                                System.err.format("option '%s' requires non-null positive numbers\n", arg);
+                                System.exit(1);
+                            }
+
+                            for (int k = 0; k < j; k++) {
+                                if (options.wigSpans[k] == options.wigSpans[j]) {
+                                    System.err.format("option '%s': span %d given twice\n", arg, options.wigSpans[j]);
+                                    System.exit(1);
+                                }
+                            }
                         }
                     } catch (NumberFormatException e) {
-                        System.err.format("option '%s': invalid int value %s\n", arg, args[i+1]);
+                        System.err.format("option '%s': invalid value %s\n", arg, args[i+1]);
                         System.exit(1);
                     }
 
@@ -73,9 +135,9 @@ public class Main {
             } else if (arg.equals("-e") || arg.equals("--ext")) {
                 if (i + 1 < args.length) {
                     try {
-                        readExtension = Integer.parseInt(args[i+1]);
+                        options.readExtension = Integer.parseInt(args[i+1]);
 
-                        if (readExtension < 0) {
+                        if (options.readExtension < 0) {
                             System.err.format("option '%s' requires a positive number\n", arg);
                             System.exit(1);
                         }
@@ -92,9 +154,9 @@ public class Main {
             } else if (arg.equals("--bg")) {
                 if (i + 1 < args.length) {
                     try {
-                        backgroundThreshold = Integer.parseInt(args[i + 1]);
+                        options.backgroundThreshold = Integer.parseInt(args[i + 1]);
 
-                        if (readExtension < 0) {
+                        if (options.readExtension < 0) {
                             System.err.format("option '%s' requires a positive number\n", arg);
                             System.exit(1);
                         }
@@ -108,15 +170,221 @@ public class Main {
                     System.err.format("option '%s' requires an argument\n", arg);
                     System.exit(1);
                 }
+            } else if (arg.equals("-t") || arg.equals("--threads")) {
+                if (i + 1 < args.length) {
+                    try {
+                        options.threads = Integer.parseInt(args[i+1]);
+
+                        if (options.threads <= 0) {
+                            System.err.format("option '%s' requires a non-null positive number\n", arg);
+                            System.exit(1);
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.format("option '%s': invalid int value %s\n", arg, args[i+1]);
+                        System.exit(1);
+                    }
+
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--diff")) {
+                options.useDifferences = true;
             } else if (arg.equals("-5")) {
-                useFiveReps = true;
+                options.useFiveReps = true;
+            } else if (arg.equals("--chunk")) {
+                if (i + 1 < args.length) {
+                    try {
+                        options.chunkSize = Integer.parseInt(args[i+1]);
+
+                        if (options.chunkSize <= 0) {
+                            System.err.format("option '%s' requires a non-null positive number\n", arg);
+                            System.exit(1);
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.format("option '%s': invalid int value %s\n", arg, args[i+1]);
+                        System.exit(1);
+                    }
+
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--codec")) {
+                if (i + 1 < args.length) {
+                    options.codec = args[i+1];
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--no-shuffle")) {
+                options.shuffle = false;
+            } else if (arg.equals("--sparse-localqcs")) {
+                options.sparseLocalQCs = true;
+            } else if (arg.equals("--zoom")) {
+                if (i + 1 < args.length) {
+                    if (args[i+1].equals("none"))
+                        options.zoomSpans = new int[0];
+                    else {
+                        String[] values = args[i+1].split(",");
+                        options.zoomSpans = new int[values.length];
+
+                        try {
+                            for (int j = 0; j < values.length; j++) {
+                                options.zoomSpans[j] = Integer.parseInt(values[j]);
+
+                                if (options.zoomSpans[j] <= 0) {
+                                    System.err.format("option '%s' requires non-null positive numbers\n", arg);
+                                    System.exit(1);
+                                }
+                            }
+                        } catch (NumberFormatException e) {
+                            System.err.format("option '%s': invalid value %s\n", arg, args[i+1]);
+                            System.exit(1);
+                        }
+                    }
+
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--report")) {
+                if (i + 1 < args.length) {
+                    options.reportFile = new File(args[i+1]);
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--cache")) {
+                if (i + 1 < args.length) {
+                    options.cacheFile = new File(args[i+1]);
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--aliases")) {
+                if (i + 1 < args.length) {
+                    options.aliasFile = new File(args[i+1]);
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--report-attrs")) {
+                options.reportAttrs = true;
+            } else if (batch && (arg.equals("-j") || arg.equals("--jobs"))) {
+                if (i + 1 < args.length) {
+                    try {
+                        options.jobs = Integer.parseInt(args[i+1]);
+
+                        if (options.jobs <= 0) {
+                            System.err.format("option '%s' requires a non-null positive number\n", arg);
+                            System.exit(1);
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.format("option '%s': invalid int value %s\n", arg, args[i+1]);
+                        System.exit(1);
+                    }
+
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (batch && arg.equals("--memory")) {
+                if (i + 1 < args.length) {
+                    try {
+                        options.memoryBudget = Long.parseLong(args[i+1]) << 20;
+
+                        if (options.memoryBudget <= 0) {
+                            System.err.format("option '%s' requires a non-null positive number\n", arg);
+                            System.exit(1);
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.format("option '%s': invalid int value %s\n", arg, args[i+1]);
+                        System.exit(1);
+                    }
+
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--unsorted")) {
+                options.unsorted = true;
+            } else if (arg.equals("--sort")) {
+                options.sort = true;
+            } else if (arg.equals("--sort-buffer")) {
+                if (i + 1 < args.length) {
+                    try {
+                        options.sortBuffer = Integer.parseInt(args[i+1]);
+
+                        if (options.sortBuffer <= 0 || options.sortBuffer > 8192) {
+                            System.err.format("option '%s' requires a number between 1 and 8192\n", arg);
+                            System.exit(1);
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.format("option '%s': invalid int value %s\n", arg, args[i+1]);
+                        System.exit(1);
+                    }
+
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--tmp-dir")) {
+                if (i + 1 < args.length) {
+                    options.tmpDir = new File(args[i+1]);
+
+                    if (! options.tmpDir.isDirectory()) {
+                        System.err.format("%s: no such directory\n", args[i+1]);
+                        System.exit(1);
+                    }
+
+                    i++;
+                } else {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--mmap")) {
+                options.mappedWiggles = true;
+            } else if (arg.equals("--stream")) {
+                options.stream = true;
             } else if (arg.equals("--skip")) {
-                skip = true;
+                options.skip = true;
             } else if (arg.equals("--forgive")) {
-                forgive = true;
+                options.forgive = true;
             } else if (arg.equals("--quiet")) {
-                quiet = true;
-            } else if (arg.charAt(0) == '-') {
+                options.quiet = true;
+            } else if (arg.charAt(0) == '-' && ! arg.equals("-")) {
+                System.err.format("invalid option '%s'\n", arg);
+                System.exit(1);
+            } else if (batch && positionalCounter == 0) {
+                manifestFile = new File(arg);
+                positionalCounter++;
+            } else if (batch && positionalCounter == 1) {
+                chromSizesFile = new File(arg);
+                positionalCounter++;
+            } else if (batch) {
+                System.err.format("invalid option '%s'\n", arg);
+                System.exit(1);
+            } else if (update && positionalCounter == 0) {
+                bedFile = new File(arg);
+                positionalCounter++;
+            } else if (update && positionalCounter == 1) {
+                chromSizesFile = new File(arg);
+                positionalCounter++;
+            } else if (update && positionalCounter == 2) {
+                outFile = new File(arg);
+                positionalCounter++;
+            } else if (update) {
                 System.err.format("invalid option '%s'\n", arg);
                 System.exit(1);
             } else if (positionalCounter == 0) {
@@ -137,33 +405,191 @@ public class Main {
             }
         }
 
-        if (positionalCounter < 3) {
+        if (batch) {
+            if (positionalCounter < 2) {
+                System.err.println("Missing arguments. Type --help to display help message.");
+                System.exit(1);
+            } else if (! manifestFile.isFile()) {
+                System.err.format("%s: no such file or directory\n", manifestFile.getPath());
+                System.exit(1);
+            } else if (! chromSizesFile.isFile()) {
+                System.err.format("%s: no such file or directory\n", chromSizesFile.getPath());
+                System.exit(1);
+            } else if (options.reportFile != null) {
+                System.err.println("option '--report' cannot be used in batch mode: use the REPORT column of the manifest");
+                System.exit(1);
+            } else if (options.cacheFile != null) {
+                System.err.println("option '--cache' cannot be used in batch mode");
+                System.exit(1);
+            }
+        } else if (update) {
+            if (positionalCounter < 3) {
+                System.err.println("Missing arguments. Type --help to display help message.");
+                System.exit(1);
+            } else if (! isReadable(bedFile)) {
+                System.err.format("%s: no such file or directory\n", bedFile.getPath());
+                System.exit(1);
+            } else if (! chromSizesFile.isFile()) {
+                System.err.format("%s: no such file or directory\n", chromSizesFile.getPath());
+                System.exit(1);
+            } else if (options.stream) {
+                System.err.println("option '--stream' cannot be used in update mode");
+                System.exit(1);
+            }
+        } else if (positionalCounter < 3) {
             System.err.println("Missing arguments. Type --help to display help message.");
             System.exit(1);
-        } else if (! bedFile.isFile()) {
+        } else if (! isReadable(bedFile)) {
             System.err.format("%s: no such file or directory\n", bedFile.getPath());
             System.exit(1);
-        } else if (! tableFile.isFile()) {
+        } else if (! isReadable(tableFile)) {
             System.err.format("%s: no such file or directory\n", tableFile.getPath());
             System.exit(1);
+        } else if (InputStreams.isStdin(bedFile) && InputStreams.isStdin(tableFile)) {
+            System.err.println("BED and TABLE cannot both be read from the standard input");
+            System.exit(1);
         } else if (! chromSizesFile.isFile()) {
             System.err.format("%s: no such file or directory\n", chromSizesFile.getPath());
             System.exit(1);
         }
 
+        if (options.aliasFile != null && ! options.aliasFile.isFile()) {
+            System.err.format("%s: no such file or directory\n", options.aliasFile.getPath());
+            System.exit(1);
+        }
+
+        options.storage = StorageOptions.parse(options.codec, options.chunkSize, options.shuffle);
+        if (options.storage == null) {
+            System.err.format("option '--codec': invalid value %s\n", options.codec);
+            System.exit(1);
+        }
+        options.storage.setSparseLocalQCs(options.sparseLocalQCs);
+
+        RunReport report = new RunReport();
+        RunReport.Stage stage = report.start("assembly", chromSizesFile);
         Assembly assembly = new Assembly(chromSizesFile);
-        BinnedProfile profile = new BinnedProfile(bedFile, tableFile, assembly, wigSpan);
+        stage.addBytes(chromSizesFile.length());
+
+        if (options.aliasFile != null) {
+            assembly.loadAliases(options.aliasFile);
+            stage.addBytes(options.aliasFile.length());
+        }
+
+        stage.setLines(assembly.getChroms().size());
+        stage.end();
+
+        if (batch) {
+            new BatchRunner(assembly, options).run(manifestFile);
+            return;
+        }
+
+        try {
+            if (update) {
+                BinnedProfile profile = new BinnedProfile(bedFile, null, assembly, options.wigSpans, options.useDifferences, options.threads);
+                update(profile, outFile, options, report);
+            } else {
+                BinnedProfile profile = new BinnedProfile(bedFile, tableFile, assembly, options.wigSpans, options.useDifferences, options.threads);
+                process(profile, outFile, options, report);
+            }
+        } catch (SampleException e) {
+            if (e.getCause() != null)
+                e.getCause().printStackTrace();
+
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Number of reads per sorted run: 16 bytes per read.
+     */
+    static int getSortRunSize(Options options) {
+        return (int) (((long) options.sortBuffer << 20) / 16);
+    }
+
+    /**
+     * Applies the options that change how reads are loaded, and that estimateMemory() depends on.
+     */
+    static void configure(BinnedProfile profile, Options options) {
+        profile.setUnsorted(options.unsorted);
+
+        if (options.sort)
+            profile.setSort(options.tmpDir, getSortRunSize(options));
+
+        if (options.mappedWiggles)
+            profile.setMappedWiggles(options.tmpDir);
+    }
 
-        if (! quiet)
+    /**
+     * Loads a sample and writes it to outFile. The report is written to options.reportFile, if any.
+     * Throws a SampleException if the sample cannot be processed.
+     */
+    static void process(BinnedProfile profile, File outFile, Options options, RunReport report) {
+        profile.setReport(report);
+
+        if (! options.quiet)
             System.err.println("Loading LocalQCs");
-        profile.loadLocalQCs(backgroundThreshold, useFiveReps, skip, forgive, quiet);
+        profile.loadLocalQCs(options.backgroundThreshold, options.useFiveReps, options.skip, options.forgive, options.quiet);
+        configure(profile, options);
+
+        if (options.cacheFile != null)
+            profile.setReadCache(options.cacheFile);
+
+        if (options.stream)
+            profile.openStream(outFile, options.useFiveReps, options.storage, options.zoomSpans);
 
-        if (! quiet)
+        if (! options.quiet)
             System.err.println("Loading Wiggles");
-        profile.loadWiggles(readExtension, skip, forgive, quiet);
+        profile.loadWiggles(options.readExtension, options.skip, options.forgive, options.quiet);
 
-        if (! quiet)
+        if (! options.quiet)
             System.err.println("Writing HDF5");
-        profile.toHDF5(outFile, useFiveReps);
+        profile.toHDF5(outFile, options.useFiveReps, options.storage, options.zoomSpans);
+        writeReport(outFile, options, report);
+    }
+
+    /**
+     * Update mode: loads the reads of a sample and adds them to the wiggles of outFile.
+     * LocalQCs are left unchanged. Throws a SampleException if the sample cannot be processed.
+     */
+    static void update(BinnedProfile profile, File outFile, Options options, RunReport report) {
+        profile.setReport(report);
+        profile.openUpdate(outFile, options.storage);
+        configure(profile, options);
+
+        if (options.cacheFile != null)
+            profile.setReadCache(options.cacheFile);
+
+        if (! options.quiet)
+            System.err.println("Loading Wiggles");
+        profile.loadWiggles(options.readExtension, options.skip, options.forgive, options.quiet);
+
+        if (! options.quiet)
+            System.err.println("Updating HDF5");
+        profile.updateHDF5();
+        writeReport(outFile, options, report);
+    }
+
+    /**
+     * Writes the report to options.reportFile and, with --report-attrs, to the output files.
+     */
+    private static void writeReport(File outFile, Options options, RunReport report) {
+        if (options.reportAttrs) {
+            String json = report.toJSON();
+
+            for (File file: BinnedProfile.getOutputFiles(outFile, options.wigSpans)) {
+                try (IHDF5Writer writer = HDF5Factory.open(file)) {
+                    writer.string().setAttr("/", "report", json);
+                }
+            }
+        }
+
+        if (options.reportFile != null) {
+            try {
+                report.writeJSON(options.reportFile);
+            } catch (IOException e) {
+                throw new SampleException(options.reportFile.getPath() + ": " + e, e);
+            }
+        }
     }
 }
@@ -0,0 +1,173 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Wiggle counters stored off-heap, in a memory-mapped scratch file: two interleaved counters per bin
+ * (intensity, intensity without PCR duplicates), as in Section. The operating system pages counters
+ * in and out, so the heap does not grow with the number of bins.
+ *
+ * The file is mapped in segments (a mapping cannot exceed 2 GB), and deleted as soon as it is mapped:
+ * its space is released by close(), or, if the JVM does not allow to unmap explicitly, when the mappings
+ * are garbage collected.
+ */
+public class MappedCounters {
+    // Bins per segment: 2^27 bins, i.e. 1 GB of counters
+    private static final int SEGMENT_SHIFT = 27;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private MappedByteBuffer[] mappings;
+    private IntBuffer[] segments;
+    private final int nBins;
+
+    /**
+     * @param dir directory of the scratch file (null for the default temporary directory)
+     */
+    public MappedCounters(File dir, int nBins) throws IOException {
+        File file = File.createTempFile("h5ngsqc-", ".wig", dir);
+        this.nBins = nBins;
+        this.segments = new IntBuffer[(int) (((long) nBins + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+        this.mappings = new MappedByteBuffer[this.segments.length];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long bytes = nBins * 8L;
+            FileChannel channel = raf.getChannel();
+
+            // Sparse on most file systems: counters read as zeros until written
+            raf.setLength(bytes);
+
+            for (int i = 0; i < this.segments.length; i++) {
+                long offset = (long) i << (SEGMENT_SHIFT + 3);
+                long size = Math.min(1L << (SEGMENT_SHIFT + 3), bytes - offset);
+                this.mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                this.segments[i] = this.mappings[i].order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+        } finally {
+            if (! file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Adds 1 to the bins first to last (inclusive); to the intensity without duplicates as well if isUniqueRead.
+     */
+    public void addBins(int first, int last, boolean isUniqueRead) {
+        while (first <= last) {
+            IntBuffer segment = this.segments[first >>> SEGMENT_SHIFT];
+            int segmentLast = Math.min(last, first | SEGMENT_MASK);
+
+            for (int i = (first & SEGMENT_MASK) * 2, end = (segmentLast & SEGMENT_MASK) * 2; i <= end; i += 2) {
+                segment.put(i, segment.get(i) + 1);
+
+                if (isUniqueRead)
+                    segment.put(i + 1, segment.get(i + 1) + 1);
+            }
+
+            first = segmentLast + 1;
+        }
+    }
+
+    /**
+     * Adds delta to a bin; to the intensity without duplicates as well if isUniqueRead.
+     */
+    public void add(int bin, int delta, boolean isUniqueRead) {
+        IntBuffer segment = this.segments[bin >>> SEGMENT_SHIFT];
+        int i = (bin & SEGMENT_MASK) * 2;
+        segment.put(i, segment.get(i) + delta);
+
+        if (isUniqueRead)
+            segment.put(i + 1, segment.get(i + 1) + delta);
+    }
+
+    /**
+     * Turns differences into coverage: each bin becomes the sum of the bins up to it.
+     */
+    public void sumDifferences() {
+        int sum = 0;
+        int uniqueSum = 0;
+
+        for (IntBuffer segment: this.segments) {
+            for (int i = 0; i < segment.limit(); i += 2) {
+                sum += segment.get(i);
+                uniqueSum += segment.get(i + 1);
+                segment.put(i, sum);
+                segment.put(i + 1, uniqueSum);
+            }
+        }
+    }
+
+    /**
+     * Copies the interleaved counters of the bins first to first + bins - 1 into values.
+     */
+    public void get(int first, int[] values, int bins) {
+        int offset = 0;
+
+        while (bins > 0) {
+            IntBuffer segment = this.segments[first >>> SEGMENT_SHIFT].duplicate();
+            int n = Math.min(bins, SEGMENT_MASK - (first & SEGMENT_MASK) + 1);
+            segment.position((first & SEGMENT_MASK) * 2);
+            segment.get(values, offset, n * 2);
+            offset += n * 2;
+            first += n;
+            bins -= n;
+        }
+    }
+
+    public int getNBins() {
+        return nBins;
+    }
+
+    /**
+     * Unmaps the counters, releasing the space of the scratch file. The counters cannot be used afterwards,
+     * and no other thread may be using them.
+     */
+    public void close() {
+        if (this.mappings == null)
+            return;
+
+        for (MappedByteBuffer mapping: this.mappings)
+            unmap(mapping);
+
+        this.mappings = null;
+        this.segments = null;
+    }
+
+    /**
+     * Unmaps a buffer without waiting for it to be garbage collected: with sun.misc.Unsafe.invokeCleaner()
+     * (Java 9+), or with the cleaner of the buffer (Java 8). Does nothing if neither can be accessed.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object value = cleaner.invoke(buffer);
+
+                if (value != null)
+                    value.getClass().getMethod("clean").invoke(value);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Released when garbage collected
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 'merge' subcommand: combines the wiggles of several HDF5 files (e.g. pooled replicates, or group averages)
+ * into a new file. Wiggles are read, combined and written block by block, chromosomes in parallel,
+ * so that at most one block per input and per thread is in memory. LocalQCs are not merged.
+ */
+public class MergeCommand {
+    public enum Op { SUM, MEAN, MAX }
+
+    private final ProfileReader[] readers;
+    private final File[] files;
+    private final Op op;
+    private final StorageOptions storage;
+    private final int[] zoomSpans;
+
+    public MergeCommand(File[] files, Op op, StorageOptions storage, int[] zoomSpans, int threads) {
+        this.files = files;
+        this.readers = new ProfileReader[files.length];
+        this.op = op;
+        this.storage = storage;
+        this.zoomSpans = zoomSpans;
+
+        // One cached block per thread: blocks are read once, in order
+        for (int i = 0; i < files.length; i++)
+            this.readers[i] = new ProfileReader(files[i], storage.getChunkSize(Integer.MAX_VALUE), threads);
+    }
+
+    private static void showHelp() {
+        System.out.println("\nUsage: java -jar h5ngsqc.jar merge OUTPUT INPUT [INPUT ...] [options]");
+        System.out.format("    %-15soutput HDF5 file. If it already exists, it will be overwritten.\n", "OUTPUT");
+        System.out.format("    %-15sHDF5 file generated by h5ngsqc. All inputs must have the same chromosomes, sizes and span.\n\n", "INPUT");
+        System.out.format("Options: --op STR          sum, mean, or max of the wiggles of the inputs (default: sum).\n");
+        System.out.format("         -t, --threads INT number of chromosomes merged in parallel (default: 1).\n");
+        System.out.format("         --chunk INT       number of rows per HDF5 chunk, and per block read from the inputs (default: %d).\n", StorageOptions.DEFAULT_CHUNK_SIZE);
+        System.out.format("         --codec STR       HDF5 compression: none, deflate[:LEVEL], or scaleoffset[:LEVEL] (default: deflate:%d).\n", StorageOptions.DEFAULT_LEVEL);
+        System.out.format("                           scaleoffset applies to integers; other datasets are deflated at LEVEL (default: %d).\n", StorageOptions.DEFAULT_LEVEL);
+        System.out.format("         --no-shuffle      do not apply the shuffle filter before deflate (never applied after scaleoffset).\n");
+        System.out.format("         --zoom LIST       comma-separated spans in bp of the wiggle zoom levels, or 'none' (default: 500,5000,50000,500000).\n");
+        System.out.format("         --quiet           do not display progress messages.\n");
+    }
+
+    public static void run(String[] args) {
+        File outFile = null;
+        ArrayList<File> files = new ArrayList<>();
+        Op op = Op.SUM;
+        int threads = 1;
+        int chunkSize = StorageOptions.DEFAULT_CHUNK_SIZE;
+        String codec = "deflate:" + StorageOptions.DEFAULT_LEVEL;
+        boolean shuffle = true;
+        int[] zoomSpans = ZoomLevel.DEFAULT_SPANS;
+        boolean quiet = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (arg.equals("-h") || arg.equals("--help")) {
+                showHelp();
+                System.exit(0);
+            } else if (arg.equals("--no-shuffle")) {
+                shuffle = false;
+            } else if (arg.equals("--quiet")) {
+                quiet = true;
+            } else if (arg.equals("--op") || arg.equals("-t") || arg.equals("--threads") || arg.equals("--chunk")
+                    || arg.equals("--codec") || arg.equals("--zoom")) {
+                if (i + 1 == args.length) {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+
+                String value = args[++i];
+
+                try {
+                    if (arg.equals("--op")) {
+                        op = Op.valueOf(value.toUpperCase());
+                    } else if (arg.equals("--codec")) {
+                        codec = value;
+                    } else if (arg.equals("--zoom")) {
+                        if (value.equals("none"))
+                            zoomSpans = new int[0];
+                        else {
+                            String[] values = value.split(",");
+                            zoomSpans = new int[values.length];
+
+                            for (int j = 0; j < values.length; j++) {
+                                zoomSpans[j] = Integer.parseInt(values[j]);
+
+                                if (zoomSpans[j] <= 0) {
+                                    System.err.format("option '%s' requires non-null positive numbers\n", arg);
+                                    System.exit(1);
+                                }
+                            }
+                        }
+                    } else {
+                        int n = Integer.parseInt(value);
+
+                        if (n <= 0) {
+                            System.err.format("option '%s' requires a non-null positive number\n", arg);
+                            System.exit(1);
+                        } else if (arg.equals("--chunk"))
+                            chunkSize = n;
+                        else
+                            threads = n;
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.err.format("option '%s': invalid value %s\n", arg, value);
+                    System.exit(1);
+                }
+            } else if (arg.charAt(0) == '-') {
+                System.err.format("invalid option '%s'\n", arg);
+                System.exit(1);
+            } else if (outFile == null) {
+                outFile = new File(arg);
+            } else {
+                files.add(new File(arg));
+            }
+        }
+
+        if (outFile == null || files.isEmpty()) {
+            System.err.println("Missing arguments. Type --help to display help message.");
+            System.exit(1);
+        }
+
+        for (File file: files) {
+            if (! file.isFile()) {
+                System.err.format("%s: no such file or directory\n", file.getPath());
+                System.exit(1);
+            } else if (file.getAbsoluteFile().equals(outFile.getAbsoluteFile())) {
+                System.err.format("%s: input and output are the same file\n", file.getPath());
+                System.exit(1);
+            }
+        }
+
+        StorageOptions storage = StorageOptions.parse(codec, chunkSize, shuffle);
+        if (storage == null) {
+            System.err.format("option '--codec': invalid value %s\n", codec);
+            System.exit(1);
+        }
+
+        MergeCommand command = new MergeCommand(files.toArray(new File[0]), op, storage, zoomSpans, threads);
+        command.merge(outFile, threads, quiet);
+    }
+
+    /**
+     * Merges the inputs into file. Exits if the inputs do not have the same chromosomes, sizes and span.
+     */
+    public void merge(File file, int threads, boolean quiet) {
+        ArrayList<String> chroms = this.readers[0].getChroms();
+
+        // Means are not counts: summing them again, or taking their maximum, would mix scales
+        for (int i = 0; i < this.readers.length; i++) {
+            for (String chrom: this.readers[i].getChroms()) {
+                if (this.readers[i].hasFloatWiggles(chrom)) {
+                    System.err.format("%s: chromosome '%s' has mean (float) wiggles, which cannot be merged\n", this.files[i].getPath(), chrom);
+                    System.exit(1);
+                }
+            }
+        }
+
+        for (int i = 1; i < this.readers.length; i++) {
+            ArrayList<String> others = this.readers[i].getChroms();
+
+            for (String chrom: others) {
+                if (! chroms.contains(chrom)) {
+                    System.err.format("%s: chromosome '%s' not in %s\n", this.files[i].getPath(), chrom, this.files[0].getPath());
+                    System.exit(1);
+                }
+            }
+
+            for (String chrom: chroms) {
+                if (! others.contains(chrom)) {
+                    System.err.format("%s: no chromosome '%s'\n", this.files[i].getPath(), chrom);
+                    System.exit(1);
+                } else if (this.readers[i].getSize(chrom) != this.readers[0].getSize(chrom)) {
+                    System.err.format("%s: chromosome '%s' has size %d (%d expected)\n", this.files[i].getPath(),
+                            chrom, this.readers[i].getSize(chrom), this.readers[0].getSize(chrom));
+                    System.exit(1);
+                } else if (this.readers[i].getSpan(chrom) != this.readers[0].getSpan(chrom)) {
+                    System.err.format("%s: chromosome '%s' has span %d (%d expected)\n", this.files[i].getPath(),
+                            chrom, this.readers[i].getSpan(chrom), this.readers[0].getSpan(chrom));
+                    System.exit(1);
+                }
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+
+        try (ProfileWriter writer = new ProfileWriter(file, false, this.storage, this.zoomSpans)) {
+            for (String chrom: chroms)
+                futures.add(executor.submit(() -> this.merge(writer, chrom)));
+
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+
+                if (! quiet)
+                    System.err.format("\t%s\n", chroms.get(i));
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            executor.shutdown();
+
+            for (ProfileReader reader: this.readers)
+                reader.close();
+        }
+    }
+
+    /**
+     * Merges a chromosome, block by block. Zoom levels are aggregated as blocks are written;
+     * they are not computed for means, which are not counts.
+     */
+    private void merge(ProfileWriter writer, String chrom) {
+        int size = this.readers[0].getSize(chrom);
+        int span = this.readers[0].getSpan(chrom);
+        int nRows = this.readers[0].getNWiggles(chrom);
+        int blockSize = this.storage.getChunkSize(nRows);
+        int[] factors = this.op == Op.MEAN ? new int[0] : ZoomLevel.getFactors(this.zoomSpans, span);
+        ZoomLevel[] zooms = new ZoomLevel[factors.length];
+
+        for (int i = 0; i < factors.length; i++)
+            zooms[i] = new ZoomLevel(nRows, span, factors[i]);
+
+        // Blocks are written as they are merged: the largest count is not known in advance
+        if (this.op == Op.MEAN)
+            writer.createFloatWiggles(chrom, size, span, nRows);
+        else
+            writer.createWiggles(chrom, size, span, nRows, 32);
+
+        for (int first = 0; first < nRows; first += blockSize) {
+            int rows = Math.min(blockSize, nRows - first);
+            int[] values = this.readers[0].getWiggles(chrom, first * span, (first + rows) * span);
+
+            for (int i = 1; i < this.readers.length; i++) {
+                int[] others = this.readers[i].getWiggles(chrom, first * span, (first + rows) * span);
+
+                if (this.op == Op.MAX) {
+                    for (int j = 0; j < values.length; j++)
+                        values[j] = Math.max(values[j], others[j]);
+                } else {
+                    for (int j = 0; j < values.length; j++)
+                        values[j] += others[j];
+                }
+            }
+
+            if (this.op == Op.MEAN) {
+                float[] means = new float[values.length];
+
+                for (int j = 0; j < values.length; j++)
+                    means[j] = (float) values[j] / this.readers.length;
+
+                writer.writeWiggles(chrom, means, first);
+            } else
+                writer.writeWiggles(chrom, values, first, 32);
+
+            for (ZoomLevel zoom: zooms)
+                zoom.add(values, first, rows);
+        }
+
+        for (ZoomLevel zoom: zooms) {
+            zoom.finish();
+            writer.writeZoom(chrom, zoom);
+        }
+    }
+}
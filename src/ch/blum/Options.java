@@ -0,0 +1,50 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.File;
+
+/**
+ * Command-line options shared by all the samples of a run (see Main for their description).
+ */
+public class Options implements Cloneable {
+    public int[] wigSpans = {50};
+    public int readExtension = 150;
+    public int backgroundThreshold = 0;
+    public boolean useDifferences = false;
+    public int threads = 1;
+    public boolean useFiveReps = false;
+    public boolean stream = false;
+    public boolean unsorted = false;
+    public boolean sort = false;
+    public int sortBuffer = 256;
+    public File tmpDir = null;
+    public boolean mappedWiggles = false;
+    public int chunkSize = StorageOptions.DEFAULT_CHUNK_SIZE;
+    public String codec = "deflate:" + StorageOptions.DEFAULT_LEVEL;
+    public boolean shuffle = true;
+    public boolean sparseLocalQCs = false;
+    public StorageOptions storage = null;
+    public int[] zoomSpans = ZoomLevel.DEFAULT_SPANS;
+    public File cacheFile = null;
+    public File aliasFile = null;
+    public File reportFile = null;
+    public boolean reportAttrs = false;
+    public boolean skip = false;
+    public boolean forgive = false;
+    public boolean quiet = false;
+
+    // Batch mode
+    public int jobs = Runtime.getRuntime().availableProcessors();
+    public long memoryBudget = Runtime.getRuntime().maxMemory() / 10 * 8;
+
+    public Options copy() {
+        try {
+            return (Options) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
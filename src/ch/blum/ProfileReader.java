@@ -0,0 +1,314 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import ch.systemsx.cisd.hdf5.*;
+
+/**
+ * Random-access reader for the HDF5 files written by h5ngsqc.
+ * Genomic intervals are turned into row ranges using the span attribute of each chromosome;
+ * only the blocks of rows covering an interval are read, and recently used blocks are kept
+ * in a bounded LRU cache. LocalQCs written in the sparse layout are read whole (one cache entry
+ * per chromosome) and returned in the dense form.
+ * Files written by 'merge --op mean' have float wiggles (see hasFloatWiggles()), read with getFloatWiggles().
+ */
+public class ProfileReader implements AutoCloseable {
+    public static final int DEFAULT_BLOCK_SIZE = StorageOptions.DEFAULT_CHUNK_SIZE;
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+    private static final int LOCALQC_SPAN = 500;
+
+    private final IHDF5Reader reader;
+    private final int blockSize;
+    private final Map<String, Object> cache;
+    private final Map<String, int[]> attributes;
+
+    public ProfileReader(File file) {
+        this(file, DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param blockSize number of rows read (and cached) at once
+     * @param cacheSize maximum number of cached blocks
+     */
+    public ProfileReader(File file, int blockSize, int cacheSize) {
+        this.reader = HDF5Factory.openForReading(file);
+        this.blockSize = blockSize;
+        this.cache = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+        this.attributes = new LinkedHashMap<>();
+    }
+
+    public boolean hasChrom(String chrom) {
+        return this.reader.object().exists("/" + chrom + "/wigs");
+    }
+
+    /**
+     * Returns the chromosomes of the file, in the order of the HDF5 groups.
+     */
+    public ArrayList<String> getChroms() {
+        ArrayList<String> chroms = new ArrayList<>();
+
+        for (String name: this.reader.object().getGroupMembers("/")) {
+            if (this.hasChrom(name))
+                chroms.add(name);
+        }
+
+        return chroms;
+    }
+
+    public int getSize(String chrom) {
+        return this.getAttributes(chrom)[0];
+    }
+
+    public int getSpan(String chrom) {
+        return this.getAttributes(chrom)[1];
+    }
+
+    /**
+     * Number of wiggle rows of a chromosome.
+     */
+    public int getNWiggles(String chrom) {
+        return this.getAttributes(chrom)[2];
+    }
+
+    /**
+     * Returns true if the wiggles of a chromosome are floats (means written by 'merge --op mean'), not counts.
+     */
+    public boolean hasFloatWiggles(String chrom) {
+        return this.getAttributes(chrom)[6] != 0;
+    }
+
+    /**
+     * Returns (and caches) the size, the span, the number of wiggle rows, the number of localQC rows,
+     * whether localQCs have a flag (5-replicates mode), whether localQCs are sparse, and whether wiggles are floats,
+     * of a chromosome.
+     * Files written by 'merge' have no localQCs: they have no localQC rows.
+     */
+    private synchronized int[] getAttributes(String chrom) {
+        int[] values = this.attributes.get(chrom);
+
+        if (values == null) {
+            String localQCsPath = "/" + chrom + "/localqcs";
+            boolean hasLocalQCs = this.reader.object().exists(localQCsPath);
+            boolean sparse = hasLocalQCs && this.reader.object().isGroup(localQCsPath);
+            values = new int[]{
+                    this.reader.int32().getAttr("/" + chrom, "size"),
+                    this.reader.int32().getAttr("/" + chrom, "span"),
+                    Math.toIntExact(this.reader.object().getDimensions("/" + chrom + "/wigs")[0]),
+                    ! hasLocalQCs ? 0 : sparse ? this.reader.int32().getAttr(localQCsPath, "bins") : Math.toIntExact(this.reader.object().getDimensions(localQCsPath)[0]),
+                    hasLocalQCs && (sparse ? this.reader.int32().getAttr(localQCsPath, "replicates") == 5 : this.isFiveReps(localQCsPath)) ? 1 : 0,
+                    sparse ? 1 : 0,
+                    this.reader.object().getDataSetInformation("/" + chrom + "/wigs").getTypeInformation().getDataClass() == HDF5DataClass.FLOAT ? 1 : 0
+            };
+            this.attributes.put(chrom, values);
+        }
+
+        return values;
+    }
+
+    /**
+     * Returns the wiggles overlapping [start, end) as interleaved (intensity, unique intensity) pairs;
+     * the first pair is the bin containing start. Empty ranges (start >= end) return no bins.
+     * @throws IllegalStateException if the wiggles are floats (see getFloatWiggles())
+     */
+    public int[] getWiggles(String chrom, int start, int end) {
+        if (this.hasFloatWiggles(chrom))
+            throw new IllegalStateException(chrom + ": float wiggles cannot be read as integers");
+
+        return (int[]) this.getWiggles(chrom, start, end, false);
+    }
+
+    /**
+     * Same as getWiggles(), as floats: works for float wiggles (means) and for counts.
+     */
+    public float[] getFloatWiggles(String chrom, int start, int end) {
+        if (this.hasFloatWiggles(chrom))
+            return (float[]) this.getWiggles(chrom, start, end, true);
+
+        int[] counts = (int[]) this.getWiggles(chrom, start, end, false);
+        float[] wiggles = new float[counts.length];
+
+        for (int i = 0; i < counts.length; i++)
+            wiggles[i] = counts[i];
+
+        return wiggles;
+    }
+
+    /**
+     * Returns the wiggles overlapping [start, end) as an int[], or a float[] if floats is true (float wiggles only).
+     */
+    private Object getWiggles(String chrom, int start, int end, boolean floats) {
+        // (end - 1) / span truncates toward zero: end <= 0 would give bin 0
+        if (start >= end || end <= 0)
+            return floats ? new float[0] : new int[0];
+
+        String path = "/" + chrom + "/wigs";
+        int span = this.getSpan(chrom);
+        int nRows = this.getAttributes(chrom)[2];
+        int first = Math.max(0, start) / span;
+        int last = Math.min((end - 1) / span, nRows - 1);
+
+        if (first > last)
+            return floats ? new float[0] : new int[0];
+
+        Object wiggles = floats ? new float[(last - first + 1) * 2] : new int[(last - first + 1) * 2];
+
+        for (int block = first / this.blockSize; block <= last / this.blockSize; block++) {
+            int blockStart = block * this.blockSize;
+            int rows = Math.min(this.blockSize, nRows - blockStart);
+            Object values = floats ? this.getFloatWiggleBlock(path, block, rows) : this.getWiggleBlock(path, block, rows);
+            int from = Math.max(first, blockStart);
+            int to = Math.min(last, blockStart + this.blockSize - 1);
+            System.arraycopy(values, (from - blockStart) * 2, wiggles, (from - first) * 2, (to - from + 1) * 2);
+        }
+
+        return wiggles;
+    }
+
+    /**
+     * Returns the localQCs overlapping [start, end) (500 bp bins); the first element is the bin containing start.
+     * Elements are LocalQC5 objects if the file was written in 5-replicates mode. Empty ranges return no bins.
+     */
+    public LocalQC[] getLocalQCs(String chrom, int start, int end) {
+        if (start >= end || end <= 0)
+            return new LocalQC[0];
+
+        String path = "/" + chrom + "/localqcs";
+        int nRows = this.getAttributes(chrom)[3];
+        boolean fiveReps = this.getAttributes(chrom)[4] != 0;
+        int first = Math.max(0, start) / LOCALQC_SPAN;
+        int last = Math.min((end - 1) / LOCALQC_SPAN, nRows - 1);
+
+        if (first > last)
+            return new LocalQC[0];
+        else if (this.getAttributes(chrom)[5] != 0)
+            return this.getSparseLocalQCs(path, first, last, fiveReps);
+
+        LocalQC[] localQCs = new LocalQC[last - first + 1];
+
+        for (int block = first / this.blockSize; block <= last / this.blockSize; block++) {
+            int blockStart = block * this.blockSize;
+            LocalQC[] values = this.getLocalQCBlock(path, block, Math.min(this.blockSize, nRows - blockStart), fiveReps);
+            int from = Math.max(first, blockStart);
+            int to = Math.min(last, blockStart + this.blockSize - 1);
+            System.arraycopy(values, from - blockStart, localQCs, from - first, to - from + 1);
+        }
+
+        return localQCs;
+    }
+
+    /**
+     * Sparse layout: returns the bins first to last, empty bins included.
+     */
+    private LocalQC[] getSparseLocalQCs(String path, int first, int last, boolean fiveReps) {
+        SparseLocalQCs values = this.getSparseLocalQCBlock(path, fiveReps);
+        LocalQC[] localQCs = new LocalQC[last - first + 1];
+        int[] bins = values.getBins();
+        int[] intensities = values.getIntensities();
+        double[] dispersions = values.getDispersions();
+        int[] flags = values.getFlags();
+
+        for (int i = 0; i < localQCs.length; i++)
+            localQCs[i] = fiveReps ? new LocalQC5() : new LocalQC();
+
+        for (int i = values.indexOf(first); i < bins.length && bins[i] <= last; i++) {
+            if (fiveReps)
+                ((LocalQC5) localQCs[bins[i] - first]).update(intensities[i], dispersions[i], flags[i]);
+            else
+                localQCs[bins[i] - first].update(intensities[i], dispersions[i]);
+        }
+
+        return localQCs;
+    }
+
+    private synchronized SparseLocalQCs getSparseLocalQCBlock(String path, boolean fiveReps) {
+        String key = path + "#sparse";
+        SparseLocalQCs values = (SparseLocalQCs) this.cache.get(key);
+
+        if (values == null) {
+            if (this.reader.object().exists(path + "/bin")) {
+                values = new SparseLocalQCs(
+                        this.reader.int32().readArray(path + "/bin"),
+                        this.reader.int32().readArray(path + "/intensity"),
+                        this.reader.float64().readArray(path + "/dispersion"),
+                        fiveReps ? this.reader.int32().readArray(path + "/flag") : null);
+            } else
+                values = new SparseLocalQCs(fiveReps);
+
+            this.cache.put(key, values);
+        }
+
+        return values;
+    }
+
+    private synchronized int[] getWiggleBlock(String path, int block, int rows) {
+        String key = path + "#" + block;
+        int[] values = (int[]) this.cache.get(key);
+
+        if (values == null) {
+            values = this.reader.int32().readMDArrayBlockWithOffset(path, new int[]{rows, 2},
+                    new long[]{(long) block * this.blockSize, 0}).getAsFlatArray();
+            this.cache.put(key, values);
+        }
+
+        return values;
+    }
+
+    private synchronized float[] getFloatWiggleBlock(String path, int block, int rows) {
+        String key = path + "#" + block;
+        float[] values = (float[]) this.cache.get(key);
+
+        if (values == null) {
+            values = this.reader.float32().readMDArrayBlockWithOffset(path, new int[]{rows, 2},
+                    new long[]{(long) block * this.blockSize, 0}).getAsFlatArray();
+            this.cache.put(key, values);
+        }
+
+        return values;
+    }
+
+    private synchronized LocalQC[] getLocalQCBlock(String path, int block, int rows, boolean fiveReps) {
+        String key = path + "#" + block;
+        LocalQC[] values = (LocalQC[]) this.cache.get(key);
+
+        if (values == null) {
+            long offset = (long) block * this.blockSize;
+
+            if (fiveReps) {
+                HDF5CompoundType<LocalQC5> type = this.reader.compound().getDataSetType(path, LocalQC5.class);
+                values = this.reader.compound().readArrayBlockWithOffset(path, type, rows, offset);
+            } else {
+                HDF5CompoundType<LocalQC> type = this.reader.compound().getDataSetType(path, LocalQC.class);
+                values = this.reader.compound().readArrayBlockWithOffset(path, type, rows, offset);
+            }
+
+            this.cache.put(key, values);
+        }
+
+        return values;
+    }
+
+    private boolean isFiveReps(String path) {
+        for (HDF5CompoundMemberInformation member: this.reader.compound().getDataSetInfo(path)) {
+            if (member.getName().equals("flag"))
+                return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void close() {
+        this.reader.close();
+    }
+}
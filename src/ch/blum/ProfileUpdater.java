@@ -0,0 +1,196 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.File;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.hdf5.*;
+
+/**
+ * Adds the wiggles of new reads to a file written by ProfileWriter (update mode).
+ * Wiggles are read, summed and written back chunk by chunk, and only the chunks where new reads fall
+ * are touched; the zoom levels stored in the file are recomputed for the zoom bins covering these chunks.
+ * Narrow (uint8, uint16) wiggles are widened when a sum overflows their type. LocalQCs are not modified.
+ */
+public class ProfileUpdater implements AutoCloseable {
+    // Maximum number of wiggle rows read at once to recompute zoom bins
+    private static final int MAX_ZOOM_ROWS = 1 << 20;
+
+    private final IHDF5Writer writer;
+    private final StorageOptions storage;
+
+    public ProfileUpdater(File file, StorageOptions storage) {
+        this.writer = HDF5Factory.open(file);
+        this.storage = storage;
+    }
+
+    /**
+     * Returns null if the file has the chromosome with the size and span of the section, or the reason why not.
+     */
+    public String check(String chrom, Section section) {
+        if (! this.writer.object().exists("/" + chrom + "/wigs"))
+            return String.format("no chromosome '%s'", chrom);
+
+        int size = this.writer.int32().getAttr("/" + chrom, "size");
+        int span = this.writer.int32().getAttr("/" + chrom, "span");
+
+        if (this.writer.object().getDataSetInformation("/" + chrom + "/wigs").getTypeInformation().getDataClass() == HDF5DataClass.FLOAT)
+            return String.format("chromosome '%s' has mean (float) wiggles, which cannot be updated", chrom);
+        else if (size != section.getSize())
+            return String.format("chromosome '%s' has size %d (%d expected)", chrom, size, section.getSize());
+        else if (span != section.getWigSpan())
+            return String.format("chromosome '%s' has span %d (%d expected)", chrom, span, section.getWigSpan());
+
+        return null;
+    }
+
+    /**
+     * Adds the wiggles of a section to the file, then releases its memory.
+     * Returns the size in bytes of the data rewritten, before compression.
+     */
+    public long update(String chrom, Section section) {
+        if (! section.hasWiggles()) {
+            section.destroy();
+            return 0;
+        }
+
+        String path = "/" + chrom + "/wigs";
+        int nRows = section.getNWiggles();
+        int chunkSize = this.getChunkSize(path, nRows);
+        int bits = this.writer.object().getDataSetInformation(path).getTypeInformation().getElementSize() * 8;
+        int[] wiggles = new int[chunkSize * 2];
+        boolean[] dirty = new boolean[(nRows + chunkSize - 1) / chunkSize];
+        long bytes = 0;
+
+        for (int chunk = 0; chunk < dirty.length; chunk++) {
+            int first = chunk * chunkSize;
+            int rows = Math.min(chunkSize, nRows - first);
+            section.getWiggles(first, wiggles, rows);
+
+            for (int i = 0; i < rows * 2 && ! dirty[chunk]; i++)
+                dirty[chunk] = wiggles[i] != 0;
+
+            if (! dirty[chunk])
+                continue;
+
+            long[] offset = new long[]{first, 0};
+            int[] values = this.writer.int32().readMDArrayBlockWithOffset(path, new int[]{rows, 2}, offset).getAsFlatArray();
+
+            int max = 0;
+
+            for (int i = 0; i < rows * 2; i++) {
+                values[i] += wiggles[i];
+                max = Math.max(max, values[i]);
+            }
+
+            // Chunks already written fit in the narrower type, so they are copied as is
+            if (bits < 32 && max > (1 << bits) - 1) {
+                int newBits = max <= 0xFFFF ? 16 : 32;
+                bytes += this.widen(path, nRows, chunkSize, newBits);
+                bits = newBits;
+            }
+
+            ProfileWriter.writeWiggles(this.writer, path, values, first, bits);
+            bytes += rows * 2L * bits / 8;
+        }
+
+        String zoomPath = "/" + chrom + "/zoom";
+        if (this.writer.object().exists(zoomPath)) {
+            for (String name: this.writer.object().getGroupMembers(zoomPath))
+                bytes += this.updateZoom(zoomPath + "/" + name, path, section.getWigSpan(), nRows, dirty, chunkSize);
+        }
+
+        section.destroy();
+        return bytes;
+    }
+
+    /**
+     * Replaces a wiggle dataset by a copy with a wider type (16 or 32 bits).
+     * Returns the size in bytes of the data rewritten.
+     */
+    private long widen(String path, int nRows, int chunkSize, int bits) {
+        String tmpPath = path + ".tmp";
+        HDF5IntStorageFeatures features = this.storage.getIntFeatures();
+        ProfileWriter.createWiggles(this.writer, tmpPath, nRows, chunkSize, bits, features);
+
+        for (int first = 0; first < nRows; first += chunkSize) {
+            int rows = Math.min(chunkSize, nRows - first);
+            int[] values = this.writer.int32().readMDArrayBlockWithOffset(path, new int[]{rows, 2}, new long[]{first, 0}).getAsFlatArray();
+            ProfileWriter.writeWiggles(this.writer, tmpPath, values, first, bits);
+        }
+
+        this.writer.object().delete(path);
+        this.writer.object().move(tmpPath, path);
+        return nRows * 2L * bits / 8;
+    }
+
+    /**
+     * Recomputes, from the updated wiggles, the zoom bins overlapping a dirty chunk.
+     * Returns the size in bytes of the zoom bins rewritten.
+     */
+    private long updateZoom(String path, String wigPath, int wigSpan, int nRows, boolean[] dirty, int chunkSize) {
+        int factor = this.writer.int32().getAttr(path, "span") / wigSpan;
+        int nBins = Math.toIntExact(this.writer.object().getDimensions(path + "/sum")[0]);
+        int maxBins = Math.max(1, MAX_ZOOM_ROWS / factor);
+        long bytes = 0;
+
+        for (int bin = 0; bin < nBins; ) {
+            if (! isDirty(dirty, chunkSize, bin, factor, nRows)) {
+                bin++;
+                continue;
+            }
+
+            int end = bin + 1;
+            while (end < nBins && end - bin < maxBins && isDirty(dirty, chunkSize, end, factor, nRows))
+                end++;
+
+            int first = bin * factor;
+            int rows = Math.min(end * factor, nRows) - first;
+            int[] wiggles = this.writer.int32().readMDArrayBlockWithOffset(wigPath, new int[]{rows, 2},
+                    new long[]{first, 0}).getAsFlatArray();
+            ZoomLevel zoom = ZoomLevel.aggregate(wiggles, rows, wigSpan, factor);
+            int[] shape = new int[]{zoom.getNBins(), 2};
+            long[] origin = new long[]{bin, 0};
+
+            this.writer.int64().writeMDArrayBlockWithOffset(path + "/sum", new MDLongArray(zoom.getSums(), shape), origin);
+            this.writer.int32().writeMDArrayBlockWithOffset(path + "/max", new MDIntArray(zoom.getMaxs(), shape), origin);
+            this.writer.float32().writeMDArrayBlockWithOffset(path + "/mean", new MDFloatArray(zoom.getMeans(), shape), origin);
+            bytes += zoom.getNBins() * 32L;
+            bin = end;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Returns true if a wiggle chunk overlapping the given zoom bin is dirty.
+     */
+    private static boolean isDirty(boolean[] dirty, int chunkSize, int bin, int factor, int nRows) {
+        int first = bin * factor;
+        int last = Math.min(first + factor, nRows) - 1;
+
+        for (int chunk = first / chunkSize; chunk <= last / chunkSize; chunk++) {
+            if (dirty[chunk])
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Rows per chunk of a dataset: chunks are read and written whole.
+     */
+    private int getChunkSize(String path, int nRows) {
+        int[] chunk = this.writer.object().getDataSetInformation(path).tryGetChunkSizes();
+        return chunk != null && chunk[0] > 0 ? chunk[0] : this.storage.getChunkSize(nRows);
+    }
+
+    @Override
+    public void close() {
+        this.writer.close();
+    }
+}
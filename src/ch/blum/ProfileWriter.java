@@ -0,0 +1,293 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.File;
+import java.util.Arrays;
+import ch.systemsx.cisd.base.mdarray.MDByteArray;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+import ch.systemsx.cisd.base.mdarray.MDLongArray;
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.*;
+
+/**
+ * Writes sections to an HDF5 file: one group per chromosome,
+ * with the localQCs, the wiggles, the size/span attributes,
+ * and the wiggle zoom levels (/chrom/zoom/<span>/{sum,max,mean}).
+ *
+ * Wiggles are stored as uint8, uint16 or int32, per chromosome: the narrowest type holding its largest count.
+ *
+ * LocalQCs are either a compound dataset with one row per 500 bp bin (dense layout, the default),
+ * or, with StorageOptions.setSparseLocalQCs(), a group of columns (bin, intensity, dispersion, flag)
+ * holding only the bins having a localQC, with the number of bins and replicates as attributes.
+ */
+public class ProfileWriter implements AutoCloseable {
+    // Maximum number of wiggle rows copied from a section and written at once
+    private static final int BLOCK_ROWS = 1 << 20;
+
+    private final IHDF5Writer writer;
+    private final boolean useFiveReps;
+    private final StorageOptions storage;
+    private final int[] zoomSpans;
+    private final HDF5IntStorageFeatures intFeatures;
+    private final HDF5GenericStorageFeatures features;
+
+    // Compound records of the dense localQC layout, reused for every chunk
+    private LocalQC[] block;
+
+    public ProfileWriter(File file, boolean useFiveReps, StorageOptions storage, int[] zoomSpans) {
+        IHDF5WriterConfigurator config = HDF5Factory.configure(file);
+        config.overwrite();
+        config.dontUseExtendableDataTypes();
+        this.writer = config.writer();
+        this.useFiveReps = useFiveReps;
+        this.storage = storage;
+        this.zoomSpans = zoomSpans;
+        this.intFeatures = storage.getIntFeatures();
+        this.features = storage.getGenericFeatures();
+        this.block = null;
+    }
+
+    /**
+     * Writes a section, then releases its memory.
+     * Returns the size in bytes of the data written, before compression.
+     */
+    public long write(String chrom, Section section) {
+        long bytes;
+
+        if (this.storage.useSparseLocalQCs())
+            bytes = this.writeSparseLocalQCs("/" + chrom + "/localqcs", section);
+        else
+            bytes = this.writeLocalQCs("/" + chrom + "/localqcs", section) * (this.useFiveReps ? 16L : 12L);
+
+        // Wiggles are copied and written by blocks of whole chunks, so that counters can stay off-heap
+        int nRows = section.getNWiggles();
+        int chunkSize = this.storage.getChunkSize(nRows);
+        int blockSize = Math.max(1, BLOCK_ROWS / chunkSize) * chunkSize;
+        int[] factors = ZoomLevel.getFactors(this.zoomSpans, section.getWigSpan());
+        ZoomLevel[] zooms = new ZoomLevel[factors.length];
+        int[] block = null;
+
+        for (int i = 0; i < factors.length; i++)
+            zooms[i] = new ZoomLevel(nRows, section.getWigSpan(), factors[i]);
+
+        int bits = section.getWiggleBits();
+        this.createWiggles(chrom, section.getSize(), section.getWigSpan(), nRows, bits);
+
+        for (int first = 0; first < nRows; first += blockSize) {
+            int rows = Math.min(blockSize, nRows - first);
+
+            if (block == null || block.length != rows * 2)
+                block = new int[rows * 2];
+
+            section.getWiggles(first, block, rows);
+            this.writeWiggles(chrom, block, first, bits);
+
+            for (ZoomLevel zoom: zooms)
+                zoom.add(block, first, rows);
+        }
+
+        bytes += nRows * 2L * bits / 8;
+
+        for (ZoomLevel zoom: zooms) {
+            zoom.finish();
+            this.writeZoom(chrom, zoom);
+            bytes += zoom.getNBins() * 32L;
+        }
+
+        section.destroy();
+        return bytes;
+    }
+
+    /**
+     * Creates the wiggles and the size/span attributes of a chromosome; wiggles are then written
+     * block by block with writeWiggles() (see MergeCommand). Wiggles are uint8, uint16, or int32 (see getWiggleBits()).
+     */
+    public synchronized void createWiggles(String chrom, int size, int span, int nRows, int bits) {
+        createWiggles(this.writer, "/" + chrom + "/wigs", nRows, this.storage.getChunkSize(nRows), bits, this.intFeatures);
+        this.writer.int32().setAttr("/" + chrom, "size", size);
+        this.writer.int32().setAttr("/" + chrom, "span", span);
+    }
+
+    /**
+     * Same as createWiggles(), with float32 wiggles.
+     */
+    public synchronized void createFloatWiggles(String chrom, int size, int span, int nRows) {
+        this.writer.float32().createMDArray("/" + chrom + "/wigs", new long[]{nRows, 2},
+                new int[]{this.storage.getChunkSize(nRows), 2}, this.storage.getFloatFeatures());
+        this.writer.int32().setAttr("/" + chrom, "size", size);
+        this.writer.int32().setAttr("/" + chrom, "span", span);
+    }
+
+    /**
+     * Writes interleaved wiggles, from the given row. Values must fit in the type of the wiggles (bits).
+     */
+    public synchronized void writeWiggles(String chrom, int[] wiggles, long offset, int bits) {
+        writeWiggles(this.writer, "/" + chrom + "/wigs", wiggles, offset, bits);
+    }
+
+    /**
+     * Creates a (nRows x 2) dataset of unsigned 8 or 16 bits integers, or of signed 32 bits integers.
+     */
+    static void createWiggles(IHDF5Writer writer, String path, long nRows, int chunkSize, int bits, HDF5IntStorageFeatures features) {
+        long[] dimensions = new long[]{nRows, 2};
+        int[] chunk = new int[]{chunkSize, 2};
+
+        if (bits == 8)
+            writer.uint8().createMDArray(path, dimensions, chunk, features);
+        else if (bits == 16)
+            writer.uint16().createMDArray(path, dimensions, chunk, features);
+        else
+            writer.int32().createMDArray(path, dimensions, chunk, features);
+    }
+
+    /**
+     * Writes interleaved values to a dataset created by createWiggles(), from the given row.
+     */
+    static void writeWiggles(IHDF5Writer writer, String path, int[] wiggles, long offset, int bits) {
+        int[] shape = new int[]{wiggles.length / 2, 2};
+        long[] origin = new long[]{offset, 0};
+
+        if (bits == 8) {
+            byte[] values = new byte[wiggles.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = (byte) wiggles[i];
+
+            writer.uint8().writeMDArrayBlockWithOffset(path, new MDByteArray(values, shape), origin);
+        } else if (bits == 16) {
+            short[] values = new short[wiggles.length];
+            for (int i = 0; i < values.length; i++)
+                values[i] = (short) wiggles[i];
+
+            writer.uint16().writeMDArrayBlockWithOffset(path, new MDShortArray(values, shape), origin);
+        } else
+            writer.int32().writeMDArrayBlockWithOffset(path, new MDIntArray(wiggles, shape), origin);
+    }
+
+    public synchronized void writeWiggles(String chrom, float[] wiggles, long offset) {
+        this.writer.float32().writeMDArrayBlockWithOffset("/" + chrom + "/wigs",
+                new MDFloatArray(wiggles, new int[]{wiggles.length / 2, 2}), new long[]{offset, 0});
+    }
+
+    public synchronized void writeZoom(String chrom, ZoomLevel zoom) {
+        String path = "/" + chrom + "/zoom/" + zoom.getSpan();
+        int[] shape = new int[]{zoom.getNBins(), 2};
+        long[] dimensions = new long[]{zoom.getNBins(), 2};
+        int[] chunk = new int[]{this.storage.getChunkSize(zoom.getNBins()), 2};
+        long[] origin = new long[]{0, 0};
+
+        this.writer.int64().createMDArray(path + "/sum", dimensions, chunk, this.intFeatures);
+        this.writer.int64().writeMDArrayBlockWithOffset(path + "/sum", new MDLongArray(zoom.getSums(), shape), origin);
+        this.writer.int32().createMDArray(path + "/max", dimensions, chunk, this.intFeatures);
+        this.writer.int32().writeMDArrayBlockWithOffset(path + "/max", new MDIntArray(zoom.getMaxs(), shape), origin);
+        this.writer.float32().createMDArray(path + "/mean", dimensions, chunk, this.storage.getFloatFeatures());
+        this.writer.float32().writeMDArrayBlockWithOffset(path + "/mean", new MDFloatArray(zoom.getMeans(), shape), origin);
+        this.writer.int32().setAttr(path, "span", zoom.getSpan());
+    }
+
+    /**
+     * Dense layout. Only the chunks holding localQCs are written, from the columns of the section
+     * through a block of compound records reused for all chunks and chromosomes;
+     * other rows read as zeros (the fill value) and take no space in the file.
+     * Returns the number of rows written.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private long writeLocalQCs(String path, Section section) {
+        int nRows = section.getNLocalQCs();
+        int chunkSize = this.storage.getChunkSize(nRows);
+        Class<? extends LocalQC> cls = this.useFiveReps ? LocalQC5.class : LocalQC.class;
+        HDF5CompoundType type = this.writer.compound().getInferredType(cls);
+        this.writer.compound().createArray(path, type, nRows, chunkSize, this.features);
+
+        SparseLocalQCs localQCs = section.getLocalQCs();
+
+        if (localQCs == null || localQCs.size() == 0)
+            return 0;
+
+        int[] bins = localQCs.getBins();
+        int[] intensities = localQCs.getIntensities();
+        double[] dispersions = localQCs.getDispersions();
+        int[] flags = localQCs.getFlags();
+        LocalQC[] block = this.getBlock(chunkSize);
+        long rows = 0;
+
+        for (int i = 0; i < bins.length; ) {
+            int blockStart = bins[i] / chunkSize * chunkSize;
+            int blockRows = Math.min(chunkSize, nRows - blockStart);
+
+            for (int j = 0; j < blockRows; j++)
+                block[j].clear();
+
+            for (; i < bins.length && bins[i] < blockStart + blockRows; i++) {
+                LocalQC localQC = block[bins[i] - blockStart];
+
+                if (this.useFiveReps)
+                    ((LocalQC5) localQC).update(intensities[i], dispersions[i], flags != null ? flags[i] : 0);
+                else
+                    localQC.update(intensities[i], dispersions[i]);
+            }
+
+            this.writer.compound().writeArrayBlockWithOffset(path, type,
+                    blockRows < block.length ? Arrays.copyOf(block, blockRows) : block, blockStart);
+            rows += blockRows;
+        }
+
+        return rows;
+    }
+
+    /**
+     * Returns the reused block of compound records (LocalQC5 in 5-replicates mode), of at least size records.
+     */
+    private LocalQC[] getBlock(int size) {
+        if (this.block == null || this.block.length < size) {
+            this.block = this.useFiveReps ? new LocalQC5[size] : new LocalQC[size];
+
+            for (int i = 0; i < size; i++)
+                this.block[i] = this.useFiveReps ? new LocalQC5() : new LocalQC();
+        }
+
+        return this.block;
+    }
+
+    /**
+     * Sparse layout. Returns the size in bytes of the columns.
+     */
+    private long writeSparseLocalQCs(String path, Section section) {
+        SparseLocalQCs localQCs = section.getLocalQCs();
+        int n = localQCs != null ? localQCs.size() : 0;
+
+        this.writer.object().createGroup(path);
+        this.writer.int32().setAttr(path, "bins", section.getNLocalQCs());
+        this.writer.int32().setAttr(path, "replicates", this.useFiveReps ? 5 : 3);
+
+        // Chunked datasets cannot be empty: a chromosome without localQCs has no columns
+        if (n == 0)
+            return 0;
+
+        int chunkSize = this.storage.getChunkSize(n);
+        this.writeIntColumn(path + "/bin", localQCs.getBins(), chunkSize);
+        this.writeIntColumn(path + "/intensity", localQCs.getIntensities(), chunkSize);
+        this.writer.float64().createArray(path + "/dispersion", n, chunkSize, this.storage.getFloatFeatures());
+        this.writer.float64().writeArrayBlockWithOffset(path + "/dispersion", localQCs.getDispersions(), n, 0);
+
+        if (this.useFiveReps) {
+            int[] flags = localQCs.hasFlags() ? localQCs.getFlags() : new int[n];
+            this.writeIntColumn(path + "/flag", flags, chunkSize);
+        }
+
+        return n * (this.useFiveReps ? 20L : 16L);
+    }
+
+    private void writeIntColumn(String path, int[] values, int chunkSize) {
+        this.writer.int32().createArray(path, values.length, chunkSize, this.intFeatures);
+        this.writer.int32().writeArrayBlockWithOffset(path, values, values.length, 0);
+    }
+
+    @Override
+    public void close() {
+        this.writer.close();
+    }
+}
@@ -0,0 +1,144 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+
+/**
+ * 'query' subcommand: prints the wiggles (or localQCs) of genomic regions from an HDF5 file.
+ */
+public class QueryCommand {
+
+    private static void showHelp() {
+        System.out.println("\nUsage: java -jar h5ngsqc.jar query HDF5 REGION [REGION ...] [options]");
+        System.out.format("    %-15sHDF5 file generated by h5ngsqc\n", "HDF5");
+        System.out.format("    %-15sCHROM, or CHROM:START-END (0-based, end excluded)\n\n", "REGION");
+        System.out.format("Options: --localqcs        print localQCs instead of wiggles.\n");
+    }
+
+    public static void run(String[] args) {
+        File file = null;
+        ArrayList<String> regions = new ArrayList<>();
+        boolean localQCs = false;
+
+        for (String arg : args) {
+            if (arg.equals("-h") || arg.equals("--help")) {
+                showHelp();
+                System.exit(0);
+            } else if (arg.equals("--localqcs")) {
+                localQCs = true;
+            } else if (arg.charAt(0) == '-') {
+                System.err.format("invalid option '%s'\n", arg);
+                System.exit(1);
+            } else if (file == null) {
+                file = new File(arg);
+            } else {
+                regions.add(arg);
+            }
+        }
+
+        if (file == null || regions.isEmpty()) {
+            System.err.println("Missing arguments. Type --help to display help message.");
+            System.exit(1);
+        } else if (! file.isFile()) {
+            System.err.format("%s: no such file or directory\n", file.getPath());
+            System.exit(1);
+        }
+
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out));
+
+        try (ProfileReader reader = new ProfileReader(file)) {
+            for (String region: regions) {
+                String chrom = region;
+                int start = 0;
+                int end = Integer.MAX_VALUE;
+                int i = region.lastIndexOf(':');
+
+                if (i >= 0 && ! reader.hasChrom(region)) {
+                    chrom = region.substring(0, i);
+                    String[] bounds = region.substring(i + 1).replace(",", "").split("-");
+
+                    try {
+                        start = Integer.parseInt(bounds[0]);
+                        end = Integer.parseInt(bounds[1]);
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        System.err.format("invalid region '%s'\n", region);
+                        System.exit(1);
+                    }
+
+                    if (start < 0 || start >= end) {
+                        System.err.format("invalid region '%s': start must be lower than end\n", region);
+                        System.exit(1);
+                    }
+                }
+
+                if (! reader.hasChrom(chrom)) {
+                    System.err.format("%s: unknown chromosome '%s'\n", file.getPath(), chrom);
+                    System.exit(1);
+                }
+
+                int size = reader.getSize(chrom);
+                end = Math.min(end, size);
+
+                if (localQCs)
+                    printLocalQCs(out, reader, chrom, start, end, size);
+                else
+                    printWiggles(out, reader, chrom, start, end, size);
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void printWiggles(BufferedWriter out, ProfileReader reader, String chrom, int start, int end, int size) throws IOException {
+        int span = reader.getSpan(chrom);
+        int binStart = Math.max(0, start) / span * span;
+
+        // Means written by 'merge --op mean'
+        if (reader.hasFloatWiggles(chrom)) {
+            float[] wiggles = reader.getFloatWiggles(chrom, start, end);
+
+            for (int i = 0; i < wiggles.length; i += 2, binStart += span) {
+                out.write(chrom + "\t" + binStart + "\t" + Math.min(binStart + span, size) + "\t" + wiggles[i] + "\t" + wiggles[i+1]);
+                out.newLine();
+            }
+
+            return;
+        }
+
+        int[] wiggles = reader.getWiggles(chrom, start, end);
+
+        for (int i = 0; i < wiggles.length; i += 2, binStart += span) {
+            out.write(chrom + "\t" + binStart + "\t" + Math.min(binStart + span, size) + "\t" + wiggles[i] + "\t" + wiggles[i+1]);
+            out.newLine();
+        }
+    }
+
+    private static void printLocalQCs(BufferedWriter out, ProfileReader reader, String chrom, int start, int end, int size) throws IOException {
+        LocalQC[] localQCs = reader.getLocalQCs(chrom, start, end);
+        int binStart = Math.max(0, start) / 500 * 500;
+
+        for (int i = 0; i < localQCs.length; i++, binStart += 500) {
+            LocalQC localQC = localQCs[i];
+
+            if (localQC.getIntensity() == 0)
+                continue;
+
+            out.write(chrom + "\t" + binStart + "\t" + Math.min(binStart + 500, size) + "\t" + localQC.getIntensity() + "\t" + localQC.getDispersion());
+
+            if (localQC instanceof LocalQC5)
+                out.write("\t" + ((LocalQC5) localQC).getFlag());
+
+            out.newLine();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact binary copy of the reads of a BED file (chromosome, start, end, strand), in the order of the BED,
+ * so that later runs (e.g. with another span or extension) do not parse the text again.
+ *
+ * Layout: a header (magic, size and modification time of the BED, and the options that select the reads:
+ * flags, and fingerprint of the known chromosomes), the reads, then a footer
+ * (chromosome names, number of reads, offset of the footer, magic).
+ * Each read is two varints: ((zigzag(start - previous start) << 1 | strand) + 1), and zigzag(end - start).
+ * A 0 followed by a chromosome index switches chromosome (and resets the previous start).
+ * The file is written to a temporary file and renamed when complete: an existing cache is always complete.
+ */
+public class ReadCache {
+    private static final byte[] MAGIC = "H5NGSRC2".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 28;
+    private static final int TRAILER_SIZE = 8 + MAGIC.length;
+
+    /**
+     * Flags of the options leaving lines out of the cache: reads on unknown chromosomes (--skip), invalid lines (--forgive).
+     */
+    public static final int SKIP = 1;
+    public static final int FORGIVE = 2;
+
+    /**
+     * Returns true if the cache exists, is complete, and was made from the BED as it is now (same size
+     * and modification time), with the same flags and chromosome fingerprint (see Writer).
+     * A BED read from the standard input cannot be checked: its cache is never valid.
+     */
+    public static boolean isValid(File cacheFile, File bedFile, int flags, long fingerprint) {
+        if (InputStreams.isStdin(bedFile) || ! cacheFile.isFile() || cacheFile.length() < HEADER_SIZE + TRAILER_SIZE)
+            return false;
+
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath())) {
+            ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            ByteBuffer trailer = readFully(channel, channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+
+            if (! hasMagic(header, 0) || ! hasMagic(trailer, 8))
+                return false;
+
+            return header.getLong(MAGIC.length) == bedFile.length() && header.getLong(MAGIC.length + 8) == bedFile.lastModified()
+                    && header.getInt(MAGIC.length + 16) == flags && header.getLong(MAGIC.length + 20) == fingerprint;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer buffer, int offset) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(offset + i) != MAGIC[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static class Writer implements AutoCloseable {
+        private final File file;
+        private final File tmpFile;
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> chromIndices;
+        private final ArrayList<String> chroms;
+        private String chrom;
+        private int chromIndex;
+        private int prevStart;
+        private long nReads;
+
+        /**
+         * @param flags SKIP and FORGIVE, if lines may be left out
+         * @param fingerprint fingerprint of the known chromosomes (see Assembly.getFingerprint()) if reads on unknown
+         *                    chromosomes are left out, 0 otherwise
+         */
+        public Writer(File file, File bedFile, int flags, long fingerprint) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tmpFile), 1 << 16));
+            this.chromIndices = new HashMap<>();
+            this.chroms = new ArrayList<>();
+            this.chrom = null;
+            this.chromIndex = -1;
+            this.nReads = 0;
+
+            boolean stdin = InputStreams.isStdin(bedFile);
+            this.out.write(MAGIC);
+            this.out.writeLong(stdin ? -1 : bedFile.length());
+            this.out.writeLong(stdin ? -1 : bedFile.lastModified());
+            this.out.writeInt(flags);
+            this.out.writeLong(fingerprint);
+        }
+
+        /**
+         * Sets the chromosome of the next reads.
+         */
+        public void setChrom(String chrom) {
+            this.chrom = chrom;
+        }
+
+        public void add(int start, int end, boolean isFwRead) throws IOException {
+            Integer index = this.chromIndices.get(this.chrom);
+
+            if (index == null) {
+                index = this.chroms.size();
+                this.chromIndices.put(this.chrom, index);
+                this.chroms.add(this.chrom);
+            }
+
+            if (index != this.chromIndex) {
+                this.out.write(0);
+                this.writeVarint(index);
+                this.chromIndex = index;
+                this.prevStart = 0;
+            }
+
+            this.writeVarint(((zigzag((long) start - this.prevStart) << 1) | (isFwRead ? 0 : 1)) + 1);
+            this.writeVarint(zigzag((long) end - start));
+            this.prevStart = start;
+            this.nReads++;
+        }
+
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                this.out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+
+            this.out.write((int) value);
+        }
+
+        /**
+         * Writes the footer and renames the temporary file.
+         */
+        @Override
+        public void close() throws IOException {
+            long footerOffset = this.out.size();
+
+            this.out.writeInt(this.chroms.size());
+            for (String chrom: this.chroms)
+                this.out.writeUTF(chrom);
+            this.out.writeLong(this.nReads);
+            this.out.writeLong(footerOffset);
+            this.out.write(MAGIC);
+            this.out.close();
+
+            Files.move(this.tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        /**
+         * Closes the file without completing it.
+         */
+        public void abort() {
+            try {
+                this.out.close();
+            } catch (IOException ignored) {
+            }
+
+            this.tmpFile.delete();
+        }
+    }
+
+    /**
+     * Reads the cache through memory-mapped windows.
+     */
+    public static class Reader implements AutoCloseable {
+        private static final long WINDOW_SIZE = 1L << 28;
+
+        // Largest record: a chromosome switch (1 + 5 bytes) and a read (10 + 10 bytes)
+        private static final int MAX_RECORD_SIZE = 32;
+
+        private final FileChannel channel;
+        private final long dataEnd;
+        private final String[] chroms;
+        private final long nReads;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long windowEnd;
+
+        private int chromIndex;
+        private int start;
+        private int end;
+        private boolean isFwRead;
+
+        public Reader(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath());
+            ByteBuffer trailer = readFully(this.channel, this.channel.size() - TRAILER_SIZE, TRAILER_SIZE);
+            this.dataEnd = trailer.getLong();
+
+            DataInputStream footer = new DataInputStream(new ByteArrayInputStream(
+                    readFully(this.channel, this.dataEnd, (int) (this.channel.size() - TRAILER_SIZE - this.dataEnd)).array()));
+            this.chroms = new String[footer.readInt()];
+            for (int i = 0; i < this.chroms.length; i++)
+                this.chroms[i] = footer.readUTF();
+            this.nReads = footer.readLong();
+
+            this.map(HEADER_SIZE);
+            this.chromIndex = -1;
+        }
+
+        private void map(long position) throws IOException {
+            this.windowStart = position;
+            this.windowEnd = Math.min(this.dataEnd, position + WINDOW_SIZE);
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, this.windowStart, this.windowEnd - this.windowStart);
+        }
+
+        /**
+         * Reads the next read; returns false at the end of the cache.
+         */
+        public boolean next() throws IOException {
+            if (this.window.remaining() < MAX_RECORD_SIZE && this.windowEnd < this.dataEnd)
+                this.map(this.windowStart + this.window.position());
+
+            if (! this.window.hasRemaining())
+                return false;
+
+            long value = this.readVarint();
+
+            if (value == 0) {
+                this.chromIndex = (int) this.readVarint();
+                this.start = 0;
+                value = this.readVarint();
+            }
+
+            value--;
+            this.start += (int) unzigzag(value >>> 1);
+            this.end = this.start + (int) unzigzag(this.readVarint());
+            this.isFwRead = (value & 1) == 0;
+            return true;
+        }
+
+        private long readVarint() {
+            long value = 0;
+
+            for (int shift = 0; ; shift += 7) {
+                byte b = this.window.get();
+                value |= (long) (b & 0x7F) << shift;
+
+                if (b >= 0)
+                    return value;
+            }
+        }
+
+        public String[] getChroms() {
+            return chroms;
+        }
+
+        public long getNReads() {
+            return nReads;
+        }
+
+        /**
+         * Current position in the cache file, in bytes.
+         */
+        public long getPosition() {
+            return this.windowStart + this.window.position();
+        }
+
+        public int getChromIndex() {
+            return chromIndex;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+
+        public boolean isFwRead() {
+            return isFwRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
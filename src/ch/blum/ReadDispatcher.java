@@ -0,0 +1,296 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Accumulates reads into sections on worker threads.
+ *
+ * Chromosomes are cut into shards of SHARD_BINS bins, and consecutive shards (across chromosomes)
+ * are owned by different workers: a bin is only ever updated by the worker owning its shard,
+ * so workers never share counters. Shards are the counter blocks of Section, so a block
+ * is also only allocated and promoted to wider counters by its owner. Reads crossing a shard boundary are split.
+ * Producers (parsing threads) buffer reads per worker and hand them over in batches.
+ * Counts are commutative, so the result does not depend on the order batches are applied.
+ * If a worker fails, later batches are dropped, and the error is rethrown to the producers.
+ */
+public class ReadDispatcher implements AutoCloseable {
+    private static final int SHARD_BINS = Section.BLOCK_BINS;
+    private static final int BATCH_SIZE = 4096;
+    private static final int FLAG_UNIQUE = 1;
+    private static final int FLAG_DIFFERENCE = 2;
+    private static final int[] STOP = new int[0];
+
+    private final Section[] sections;
+    private final IdentityHashMap<Section, Integer> sectionIndices;
+    private final int[] firstShards;
+    private final Worker[] workers;
+    private final Object lock;
+    private long pendingBatches;
+
+    // First error of a worker (guarded by lock)
+    private Throwable failure;
+
+    public ReadDispatcher(Collection<Section> sections, int threads) {
+        this.sections = sections.toArray(new Section[0]);
+        this.sectionIndices = new IdentityHashMap<>();
+        this.firstShards = new int[this.sections.length];
+        this.workers = new Worker[threads];
+        this.lock = new Object();
+        this.pendingBatches = 0;
+        this.failure = null;
+
+        int shards = 0;
+        for (int i = 0; i < this.sections.length; i++) {
+            this.sectionIndices.put(this.sections[i], i);
+            this.firstShards[i] = shards;
+            shards += (this.sections[i].getNWiggles() + SHARD_BINS - 1) / SHARD_BINS;
+        }
+
+        for (int i = 0; i < threads; i++) {
+            this.workers[i] = new Worker(i);
+            this.workers[i].start();
+        }
+    }
+
+    public Producer newProducer() {
+        return new Producer();
+    }
+
+    /**
+     * Blocks until all batches handed over so far have been applied.
+     * Batches still buffered by producers must be flushed first.
+     * Rethrows the first error of a worker, if any.
+     */
+    public void await() {
+        synchronized (this.lock) {
+            while (this.pendingBatches > 0) {
+                try {
+                    this.lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            this.checkFailure();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.await();
+        } finally {
+            for (Worker worker: this.workers)
+                worker.put(STOP);
+        }
+    }
+
+    private void done() {
+        synchronized (this.lock) {
+            if (--this.pendingBatches == 0)
+                this.lock.notifyAll();
+        }
+    }
+
+    private void fail(Throwable t) {
+        synchronized (this.lock) {
+            if (this.failure == null)
+                this.failure = t;
+        }
+    }
+
+    /**
+     * Rethrows the first error of a worker. Must be called holding lock.
+     */
+    private void checkFailure() {
+        if (this.failure instanceof Error)
+            throw (Error) this.failure;
+        else if (this.failure instanceof RuntimeException)
+            throw (RuntimeException) this.failure;
+        else if (this.failure != null)
+            throw new IllegalStateException(this.failure);
+    }
+
+    private Worker getWorker(int sectionIndex, int bin) {
+        return this.workers[(this.firstShards[sectionIndex] + bin / SHARD_BINS) % this.workers.length];
+    }
+
+    /**
+     * Buffers reads for each worker. A producer must only be used by one thread.
+     */
+    public class Producer {
+        private final int[][] buffers;
+        private final int[] sizes;
+        private Section lastSection;
+        private int lastIndex;
+
+        private Producer() {
+            this.buffers = new int[workers.length][];
+            this.sizes = new int[workers.length];
+            this.lastSection = null;
+            this.lastIndex = -1;
+        }
+
+        public void addRead(Section section, int pos1, int pos2, boolean isUniqueRead) {
+            if (section != this.lastSection) {
+                section.allocateWiggles();
+                this.lastSection = section;
+                this.lastIndex = sectionIndices.get(section);
+            }
+
+            if (pos1 < 0)
+                pos1 = 0;
+
+            int span = section.getWigSpan();
+            int first = pos1 / span;
+            int last = Math.min(pos2 / span, section.getNWiggles() - 1);
+            int flags = isUniqueRead ? FLAG_UNIQUE : 0;
+
+            if (first > last)
+                return;
+            else if (section.usesDifferences()) {
+                this.add(first, first, 1, flags | FLAG_DIFFERENCE);
+
+                if (last + 1 < section.getNWiggles())
+                    this.add(last + 1, last + 1, -1, flags | FLAG_DIFFERENCE);
+
+                return;
+            }
+
+            while (first <= last) {
+                int shardLast = Math.min(last, (first / SHARD_BINS + 1) * SHARD_BINS - 1);
+                this.add(first, first, shardLast, flags);
+                first = shardLast + 1;
+            }
+        }
+
+        private void add(int bin, int a, int b, int flags) {
+            Worker worker = getWorker(this.lastIndex, bin);
+            int[] buffer = this.buffers[worker.index];
+
+            if (buffer == null) {
+                buffer = worker.take();
+                this.buffers[worker.index] = buffer;
+            }
+
+            int size = this.sizes[worker.index];
+            buffer[size++] = this.lastIndex;
+            buffer[size++] = a;
+            buffer[size++] = b;
+            buffer[size++] = flags;
+
+            if (size == buffer.length) {
+                this.hand(worker, buffer, size);
+                this.buffers[worker.index] = null;
+                size = 0;
+            }
+
+            this.sizes[worker.index] = size;
+        }
+
+        private void hand(Worker worker, int[] buffer, int size) {
+            // Mark the end of a partially filled batch
+            if (size < buffer.length)
+                buffer[size] = -1;
+
+            synchronized (lock) {
+                checkFailure();
+                pendingBatches++;
+            }
+
+            worker.put(buffer);
+        }
+
+        /**
+         * Hands all buffered reads over to the workers.
+         */
+        public void flush() {
+            for (int i = 0; i < this.buffers.length; i++) {
+                if (this.buffers[i] != null && this.sizes[i] > 0) {
+                    this.hand(workers[i], this.buffers[i], this.sizes[i]);
+                    this.buffers[i] = null;
+                    this.sizes[i] = 0;
+                }
+            }
+        }
+    }
+
+    private class Worker extends Thread {
+        private final int index;
+        private final BlockingQueue<int[]> queue;
+        private final BlockingQueue<int[]> free;
+
+        Worker(int index) {
+            super("accumulator-" + index);
+            this.setDaemon(true);
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(64);
+            this.free = new ArrayBlockingQueue<>(64);
+        }
+
+        void put(int[] batch) {
+            try {
+                this.queue.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Returns an empty batch, recycled if possible.
+         */
+        int[] take() {
+            int[] batch = this.free.poll();
+            return batch != null ? batch : new int[BATCH_SIZE * 4];
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int[] batch = this.queue.take();
+
+                    if (batch == STOP)
+                        break;
+
+                    // Every batch is counted as done, even if it fails, so that await() returns
+                    try {
+                        this.apply(batch);
+                    } catch (Throwable t) {
+                        fail(t);
+                    } finally {
+                        this.free.offer(batch);
+                        done();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        private void apply(int[] batch) {
+            synchronized (lock) {
+                // Counters may be inconsistent after a failure: drop the batch
+                if (failure != null)
+                    return;
+            }
+
+            for (int i = 0; i < batch.length && batch[i] >= 0; i += 4) {
+                Section section = sections[batch[i]];
+                boolean isUniqueRead = (batch[i+3] & FLAG_UNIQUE) != 0;
+
+                if ((batch[i+3] & FLAG_DIFFERENCE) != 0)
+                    section.addDifference(batch[i+1], batch[i+2], isUniqueRead);
+                else
+                    section.addBins(batch[i+1], batch[i+2], isUniqueRead);
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Timing, throughput and memory of each stage of a run (assembly load, localQC load, wiggle load,
+ * HDF5 write of each chromosome), written as JSON.
+ * CPU and GC times are process-wide: they include helper threads (decompression, accumulation),
+ * and, in streaming mode, the background writes overlapping the wiggle load.
+ * Peak heap is measured per stage: the peaks of the heap pools are reset when a stage starts,
+ * after being recorded for the stages still running. Pools belong to the JVM, so the stages of all reports
+ * (e.g. concurrent samples in batch mode) share one record: peaks are process-wide too, and include the memory
+ * of the other samples. The peak of the run is the largest peak of its stages.
+ */
+public class RunReport {
+    private final long startTime;
+    private final long startCpuTime;
+    private final ArrayList<Stage> stages;
+
+    // Stages not ended yet, of all reports: the heap pool peaks are reset for the whole JVM (guarded by itself)
+    private static final ArrayList<Stage> RUNNING = new ArrayList<>();
+
+    public RunReport() {
+        this.startTime = System.nanoTime();
+        this.startCpuTime = getCpuTime();
+        this.stages = new ArrayList<>();
+    }
+
+    /**
+     * Starts a stage.
+     * @param file input file, used to show progress as a fraction of its size (null if none, or if not a regular file)
+     */
+    public synchronized Stage start(String name, File file) {
+        Stage stage = new Stage(name, file != null && file.isFile() ? file.length() : 0);
+        this.stages.add(stage);
+
+        synchronized (RUNNING) {
+            long peak = getPeakHeap();
+
+            for (Stage running: RUNNING)
+                running.peakHeap = Math.max(running.peakHeap, peak);
+
+            resetPeakHeap();
+            RUNNING.add(stage);
+        }
+
+        return stage;
+    }
+
+    public void writeJSON(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(this.toJSON());
+            writer.write('\n');
+        }
+    }
+
+    public synchronized String toJSON() {
+        StringBuilder sb = new StringBuilder();
+        long[] gc = getGCTimeAndCount();
+        long peakHeap = 0;
+
+        for (Stage stage: this.stages)
+            peakHeap = Math.max(peakHeap, stage.getPeakHeap());
+
+        sb.append("{\n");
+        sb.append(format("  \"wallSeconds\": %.3f,\n", (System.nanoTime() - this.startTime) / 1e9));
+        sb.append(format("  \"cpuSeconds\": %.3f,\n", (getCpuTime() - this.startCpuTime) / 1e9));
+        sb.append(format("  \"peakHeapBytes\": %d,\n", peakHeap));
+        sb.append(format("  \"maxHeapBytes\": %d,\n", Runtime.getRuntime().maxMemory()));
+        sb.append(format("  \"gcSeconds\": %.3f,\n", gc[0] / 1e3));
+        sb.append(format("  \"gcCount\": %d,\n", gc[1]));
+        sb.append(format("  \"processors\": %d,\n", Runtime.getRuntime().availableProcessors()));
+        sb.append("  \"stages\": [");
+
+        for (int i = 0; i < this.stages.size(); i++) {
+            sb.append(i > 0 ? ",\n    " : "\n    ");
+            this.stages.get(i).appendJSON(sb);
+        }
+
+        sb.append(this.stages.isEmpty() ? "]\n" : "\n  ]\n");
+        sb.append("}");
+        return sb.toString();
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Process CPU time in nanoseconds (-1 if not supported by the JVM).
+     */
+    private static long getCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+
+        return -1;
+    }
+
+    /**
+     * Sum of the peak usages of the heap memory pools since the last reset (or since the JVM started).
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+
+        return peak;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Total GC time (ms) and number of collections since the JVM started.
+     */
+    private static long[] getGCTimeAndCount() {
+        long[] values = new long[2];
+
+        for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+            values[0] += Math.max(0, gc.getCollectionTime());
+            values[1] += Math.max(0, gc.getCollectionCount());
+        }
+
+        return values;
+    }
+
+    public static class Stage {
+        private final String name;
+        private final long totalBytes;
+        private final long startTime;
+        private final long startCpuTime;
+        private final long startGCTime;
+        private final long startGCCount;
+        private CountingInputStream counter;
+        private long bytes;
+        private long lines;
+        private long skipped;
+        private long forgiven;
+        private long endTime;
+        private long cpuTime;
+        private long gcTime;
+        private long gcCount;
+        private long peakHeap;
+
+        // Next progress message (percent of totalBytes, or lines if the size is unknown)
+        private int nextPercent;
+        private long nextLines;
+
+        private Stage(String name, long totalBytes) {
+            long[] gc = getGCTimeAndCount();
+            this.name = name;
+            this.totalBytes = totalBytes;
+            this.startTime = System.nanoTime();
+            this.startCpuTime = getCpuTime();
+            this.startGCTime = gc[0];
+            this.startGCCount = gc[1];
+            this.endTime = 0;
+            this.peakHeap = 0;
+            this.nextPercent = 5;
+            this.nextLines = 1000000;
+        }
+
+        /**
+         * Wraps the raw (possibly compressed) input of the stage, to count the bytes consumed.
+         */
+        public InputStream count(InputStream in) {
+            this.counter = new CountingInputStream(in);
+            return this.counter;
+        }
+
+        public void addBytes(long bytes) {
+            this.bytes += bytes;
+        }
+
+        /**
+         * Sets the bytes consumed so far, for inputs not read through count().
+         */
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public void setLines(long lines) {
+            this.lines = lines;
+        }
+
+        /**
+         * Line ignored because of --skip (unknown chromosome).
+         */
+        public void addSkipped() {
+            this.skipped++;
+        }
+
+        /**
+         * Invalid line ignored because of --forgive.
+         */
+        public void addForgiven() {
+            this.forgiven++;
+        }
+
+        private long getBytes() {
+            return this.counter != null ? this.counter.getCount() : this.bytes;
+        }
+
+        /**
+         * Prints the progress every 5% of the input size, with an ETA;
+         * every million lines if the size is unknown (standard input, pipes).
+         */
+        public void showProgress(long lines, String unit) {
+            long bytes = this.getBytes();
+            double seconds = (System.nanoTime() - this.startTime) / 1e9;
+            double mbPerSecond = seconds > 0 ? bytes / seconds / 1e6 : 0;
+
+            if (this.totalBytes > 0) {
+                int percent = (int) (100 * Math.min(bytes, this.totalBytes) / this.totalBytes);
+
+                if (percent < this.nextPercent)
+                    return;
+
+                this.nextPercent = percent / 5 * 5 + 5;
+                long eta = bytes > 0 ? Math.round(seconds * (this.totalBytes - bytes) / bytes) : 0;
+                System.err.format("\t%d%%: %d %s parsed, %.1f MB/s, ETA %d:%02d\n",
+                        percent, lines, unit, mbPerSecond, eta / 60, eta % 60);
+            } else if (lines >= this.nextLines) {
+                this.nextLines = lines / 1000000 * 1000000 + 1000000;
+                System.err.format("\t%d %s parsed, %.1f MB/s\n", lines, unit, mbPerSecond);
+            }
+        }
+
+        public void end() {
+            long[] gc = getGCTimeAndCount();
+            this.endTime = System.nanoTime();
+            this.cpuTime = this.startCpuTime >= 0 ? getCpuTime() - this.startCpuTime : -1;
+            this.gcTime = gc[0] - this.startGCTime;
+            this.gcCount = gc[1] - this.startGCCount;
+            this.bytes = this.getBytes();
+
+            synchronized (RUNNING) {
+                this.peakHeap = Math.max(this.peakHeap, RunReport.getPeakHeap());
+                RUNNING.remove(this);
+            }
+        }
+
+        /**
+         * Peak heap since the stage started (so far, if it is still running).
+         */
+        private long getPeakHeap() {
+            synchronized (RUNNING) {
+                return RUNNING.contains(this) ? Math.max(this.peakHeap, RunReport.getPeakHeap()) : this.peakHeap;
+            }
+        }
+
+        private void appendJSON(StringBuilder sb) {
+            double seconds = ((this.endTime != 0 ? this.endTime : System.nanoTime()) - this.startTime) / 1e9;
+
+            sb.append("{\"name\": ").append(quote(this.name));
+            sb.append(format(", \"wallSeconds\": %.3f", seconds));
+            sb.append(format(", \"cpuSeconds\": %.3f", this.cpuTime / 1e9));
+            sb.append(format(", \"bytes\": %d", this.bytes));
+            sb.append(format(", \"lines\": %d", this.lines));
+            sb.append(format(", \"bytesPerSecond\": %.0f", seconds > 0 ? this.bytes / seconds : 0));
+            sb.append(format(", \"linesPerSecond\": %.0f", seconds > 0 ? this.lines / seconds : 0));
+            sb.append(format(", \"skipped\": %d", this.skipped));
+            sb.append(format(", \"forgiven\": %d", this.forgiven));
+            sb.append(format(", \"peakHeapBytes\": %d", this.getPeakHeap()));
+            sb.append(format(", \"gcSeconds\": %.3f", this.gcTime / 1e3));
+            sb.append(format(", \"gcCount\": %d", this.gcCount));
+            sb.append("}");
+        }
+    }
+}
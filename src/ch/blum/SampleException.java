@@ -0,0 +1,22 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+/**
+ * Error in the input or output of one sample (invalid line, unknown chromosome, I/O error):
+ * the sample cannot be processed, but the other samples of a batch can (see BatchRunner).
+ * The message is meant for the user, e.g. "reads.bed: invalid number at line 12".
+ */
+public class SampleException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public SampleException(String message) {
+        super(message);
+    }
+
+    public SampleException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -4,117 +4,431 @@ package ch.blum;
  * @author  Matthias Blum <mat.blum@gmail.com>
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import ch.systemsx.cisd.base.mdarray.MDIntArray;
+
 public class Section {
+    /**
+     * Heap counters are allocated by blocks of BLOCK_BINS bins (see ReadDispatcher: a block is only updated by one thread).
+     */
+    public static final int BLOCK_SHIFT = 16;
+    public static final int BLOCK_BINS = 1 << BLOCK_SHIFT;
+
     private final int size;
     private final int wigSpan;
     private final int nLocalQCs;
     private final int nWiggles;
-    private LocalQC[] localQCs;
-    private LocalQC5[] localQC5s;
-    private Wiggle[] wiggles;
+    private SparseLocalQCs localQCs;
+    /**
+     * Heap counters, by blocks: each block holds interleaved counters, [2*i] being the intensity of its i-th bin,
+     * and [2*i+1] its intensity without PCR duplicates. A block is first an unsigned byte[], promoted to an unsigned short[],
+     * then to an int[], when one of its counters overflows; exactly one of blocks8[i], blocks16[i] and blocks32[i]
+     * is set once the i-th block is allocated, and blocks without reads are not allocated.
+     * In difference mode, blocks are int[] from the start.
+     */
+    private byte[][] blocks8;
+    private short[][] blocks16;
+    private int[][] blocks32;
+
+    /**
+     * Off-heap counters, used instead of the blocks if useMappedWiggles is true (see useMappedWiggles()).
+     */
+    private boolean useMappedWiggles;
+    private File mapDir;
+    private MappedCounters mappedWiggles;
+
+    /**
+     * If true, addRead() only records +1/-1 at the first bin and past the last bin of each read;
+     * counters are turned into coverage by a single prefix-sum pass in getWiggles().
+     */
+    private boolean useDifferences;
 
     public Section(int size, int wigSpan) {
+        this(size, wigSpan, false);
+    }
+
+    public Section(int size, int wigSpan, boolean useDifferences) {
         this.size = size;
         this.wigSpan = wigSpan;
+        this.useDifferences = useDifferences;
         this.nLocalQCs = (size + 499) / 499;
         this.nWiggles = (size + wigSpan - 1) / wigSpan;
         this.localQCs = null;
-        this.localQC5s = null;
-        this.wiggles = null;
+        this.blocks8 = null;
+        this.blocks16 = null;
+        this.blocks32 = null;
+        this.useMappedWiggles = false;
+        this.mapDir = null;
+        this.mappedWiggles = null;
+    }
+
+    /**
+     * Keeps the wiggle counters in a memory-mapped file of dir (null for the default temporary directory)
+     * instead of the heap (see MappedCounters). Must be called before reads are added.
+     */
+    public void useMappedWiggles(File dir) {
+        this.mapDir = dir;
+        this.useMappedWiggles = true;
     }
 
     public void addLocalQC(int position, int intensity, double dispersion) {
-        if (this.localQCs == null) {
-            this.localQCs = new LocalQC[this.nLocalQCs];
+        this.addLocalQC(position, intensity, dispersion, 0, false);
+    }
 
-            for (int i = 0; i < this.nLocalQCs; i++) {
-                this.localQCs[i] = new LocalQC();
-            }
+    public void addLocalQC5(int position, int intensity, double dispersion, int flag) {
+        this.addLocalQC(position, intensity, dispersion, flag, true);
+    }
+
+    private void addLocalQC(int position, int intensity, double dispersion, int flag, boolean hasFlags) {
+        int bin = position / 500;
+
+        // LocalQCs past the last bin are ignored
+        if (bin < 0 || bin >= this.nLocalQCs)
+            return;
+
+        if (this.localQCs == null)
+            this.localQCs = new SparseLocalQCs(hasFlags);
+
+        this.localQCs.add(bin, intensity, dispersion, flag);
+    }
+
+    public void addRead(int pos1, int pos2, boolean isUniqueRead) {
+        if (pos1 < 0)
+            pos1 = 0;
+
+        this.addBins(pos1 / this.wigSpan, pos2 / this.wigSpan, isUniqueRead);
+    }
+
+    /**
+     * Counts a read covering the bins first to last (inclusive). Bins past the end of the section are ignored.
+     */
+    public void addBins(int first, int last, boolean isUniqueRead) {
+        if (this.blocks8 == null && this.mappedWiggles == null)
+            this.allocateWiggles();
+
+        last = Math.min(last, this.nWiggles - 1);
+
+        if (first > last)
+            return;
+        else if (this.useDifferences) {
+            this.addDifference(first, 1, isUniqueRead);
+            this.addDifference(last + 1, -1, isUniqueRead);
+            return;
+        } else if (this.mappedWiggles != null) {
+            this.mappedWiggles.addBins(first, last, isUniqueRead);
+            return;
         }
 
-        try {
-            this.localQCs[position / 500].update(intensity, dispersion);
-        } catch (ArrayIndexOutOfBoundsException ignored) {
+        while (first <= last) {
+            int blockLast = Math.min(last, first | (BLOCK_BINS - 1));
+            this.addBlockBins(first >>> BLOCK_SHIFT, first & (BLOCK_BINS - 1), blockLast & (BLOCK_BINS - 1), isUniqueRead);
+            first = blockLast + 1;
         }
     }
 
-    public void addLocalQC5(int position, int intensity, double dispersion, int flag) {
-        if (this.localQC5s == null) {
-            this.localQC5s = new LocalQC5[this.nLocalQCs];
+    /**
+     * Counts a read covering the bins from to to (inclusive) of a block, promoting the block if a counter overflows.
+     * The intensity without duplicates is never larger than the intensity, so only the latter is checked.
+     */
+    private void addBlockBins(int block, int from, int to, boolean isUniqueRead) {
+        byte[] counters8 = this.blocks8[block];
+
+        if (counters8 == null && this.blocks16[block] == null && this.blocks32[block] == null) {
+            counters8 = new byte[this.getBlockBins(block) * 2];
+            this.blocks8[block] = counters8;
+        }
 
-            for (int i = 0; i < this.nLocalQCs; i++) {
-                this.localQC5s[i] = new LocalQC5();
+        if (counters8 != null) {
+            for (int i = from * 2; i <= to * 2; i += 2) {
+                if (counters8[i] == (byte) 0xFF) {
+                    this.promote(block);
+                    this.addBlockBins(block, i / 2, to, isUniqueRead);
+                    return;
+                }
+
+                counters8[i]++;
+
+                if (isUniqueRead)
+                    counters8[i+1]++;
             }
+
+            return;
         }
 
-        try {
-            this.localQC5s[position / 500].update(intensity, dispersion, flag);
-        } catch (ArrayIndexOutOfBoundsException ignored) {
+        short[] counters16 = this.blocks16[block];
+
+        if (counters16 != null) {
+            for (int i = from * 2; i <= to * 2; i += 2) {
+                if (counters16[i] == (short) 0xFFFF) {
+                    this.promote(block);
+                    this.addBlockBins(block, i / 2, to, isUniqueRead);
+                    return;
+                }
+
+                counters16[i]++;
+
+                if (isUniqueRead)
+                    counters16[i+1]++;
+            }
+
+            return;
+        }
+
+        int[] counters32 = this.blocks32[block];
+
+        for (int i = from * 2; i <= to * 2; i += 2) {
+            counters32[i]++;
+
+            if (isUniqueRead)
+                counters32[i+1]++;
         }
     }
 
-    public void addRead(int pos1, int pos2, boolean isUniqueRead) {
-        if (this.wiggles == null) {
-            this.wiggles = new Wiggle[this.nWiggles];
+    /**
+     * Widens the counters of a block: byte to short, or short to int.
+     */
+    private void promote(int block) {
+        if (this.blocks8[block] != null) {
+            byte[] counters8 = this.blocks8[block];
+            short[] counters16 = new short[counters8.length];
 
-            for (int i = 0; i < this.nWiggles; i++) {
-                this.wiggles[i] = new Wiggle();
-            }
+            for (int i = 0; i < counters8.length; i++)
+                counters16[i] = (short) (counters8[i] & 0xFF);
+
+            this.blocks16[block] = counters16;
+            this.blocks8[block] = null;
+        } else {
+            short[] counters16 = this.blocks16[block];
+            int[] counters32 = new int[counters16.length];
+
+            for (int i = 0; i < counters16.length; i++)
+                counters32[i] = counters16[i] & 0xFFFF;
+
+            this.blocks32[block] = counters32;
+            this.blocks16[block] = null;
         }
+    }
 
-        if (pos1 < 0)
-            pos1 = 0;
+    private int getBlockBins(int block) {
+        return Math.min(BLOCK_BINS, this.nWiggles - (block << BLOCK_SHIFT));
+    }
+
+    /**
+     * Difference mode only: adds delta to the difference recorded at the given bin.
+     * Bins past the end of the section are ignored.
+     */
+    public void addDifference(int bin, int delta, boolean isUniqueRead) {
+        if (this.blocks8 == null && this.mappedWiggles == null)
+            this.allocateWiggles();
+
+        if (bin >= this.nWiggles)
+            return;
+        else if (this.mappedWiggles != null) {
+            this.mappedWiggles.add(bin, delta, isUniqueRead);
+            return;
+        }
+
+        int block = bin >>> BLOCK_SHIFT;
+        int i = (bin & (BLOCK_BINS - 1)) * 2;
+        int[] counters32 = this.blocks32[block];
+
+        if (counters32 == null) {
+            counters32 = new int[this.getBlockBins(block) * 2];
+            this.blocks32[block] = counters32;
+        }
+
+        counters32[i] += delta;
 
-        for (int i = pos1 / this.wigSpan; i <= pos2 / this.wigSpan; i++) {
+        if (isUniqueRead)
+            counters32[i+1] += delta;
+    }
+
+    /**
+     * Allocates the counters (heap counters: the tables of blocks). Safe to call from several threads;
+     * the counters must be allocated before reads are handed to other threads.
+     */
+    public synchronized void allocateWiggles() {
+        if (this.hasWiggles())
+            return;
+        else if (this.useMappedWiggles) {
             try {
-                this.wiggles[i].add(isUniqueRead);
-            } catch (ArrayIndexOutOfBoundsException e) {
-                break;
+                this.mappedWiggles = new MappedCounters(this.mapDir, this.nWiggles);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        } else {
+            int nBlocks = (this.nWiggles + BLOCK_BINS - 1) >>> BLOCK_SHIFT;
+            this.blocks16 = new short[nBlocks][];
+            this.blocks32 = new int[nBlocks][];
+            this.blocks8 = new byte[nBlocks][];
         }
     }
 
-    public LocalQC[] getLocalQCs() {
-        if (this.localQCs == null) {
-            this.localQCs = new LocalQC[this.nLocalQCs];
+    /**
+     * Returns true if the counters are allocated (i.e. reads were added, or are about to be).
+     */
+    public boolean hasWiggles() {
+        return this.blocks8 != null || this.mappedWiggles != null;
+    }
 
-            for (int i = 0; i < this.nLocalQCs; i++) {
-                this.localQCs[i] = new LocalQC();
-            }
-        }
+    public boolean usesDifferences() {
+        return this.useDifferences;
+    }
 
+    /**
+     * Returns the localQCs of the section, or null if it has none.
+     */
+    public SparseLocalQCs getLocalQCs() {
         return this.localQCs;
     }
 
-    public LocalQC5[] getLocalQC5s() {
-        if (this.localQC5s == null) {
-            this.localQC5s = new LocalQC5[this.nLocalQCs];
+    /**
+     * Returns a (nWiggles x 2) copy of the counters, as int. Prefer getWiggles(int, int[], int) for large sections.
+     */
+    public MDIntArray getWiggles() {
+        int[] values = new int[this.nWiggles * 2];
+        this.getWiggles(0, values, this.nWiggles);
+        return new MDIntArray(values, new int[]{this.nWiggles, 2});
+    }
+
+    /**
+     * Copies the interleaved counters of the bins first to first + bins - 1 into values.
+     */
+    public void getWiggles(int first, int[] values, int bins) {
+        this.sumDifferences();
+
+        if (this.mappedWiggles != null) {
+            this.mappedWiggles.get(first, values, bins);
+            return;
+        }
+
+        for (int offset = 0; offset < bins * 2; ) {
+            int block = first >>> BLOCK_SHIFT;
+            int from = (first & (BLOCK_BINS - 1)) * 2;
+            int n = Math.min(bins * 2 - offset, this.getBlockBins(block) * 2 - from);
+
+            if (this.blocks8 == null || (this.blocks8[block] == null && this.blocks16[block] == null && this.blocks32[block] == null))
+                Arrays.fill(values, offset, offset + n, 0);
+            else if (this.blocks8[block] != null) {
+                byte[] counters8 = this.blocks8[block];
+                for (int i = 0; i < n; i++)
+                    values[offset+i] = counters8[from+i] & 0xFF;
+            } else if (this.blocks16[block] != null) {
+                short[] counters16 = this.blocks16[block];
+                for (int i = 0; i < n; i++)
+                    values[offset+i] = counters16[from+i] & 0xFFFF;
+            } else
+                System.arraycopy(this.blocks32[block], from, values, offset, n);
+
+            offset += n;
+            first += n / 2;
+        }
+    }
+
+    /**
+     * Returns the number of bits (8, 16 or 32) of the narrowest unsigned integer holding every counter.
+     */
+    public int getWiggleBits() {
+        this.sumDifferences();
+        int max = 0;
+
+        if (this.mappedWiggles != null) {
+            int[] values = new int[BLOCK_BINS * 2];
+
+            for (int first = 0; first < this.nWiggles && max <= 0xFFFF; first += BLOCK_BINS) {
+                int bins = Math.min(BLOCK_BINS, this.nWiggles - first);
+                this.mappedWiggles.get(first, values, bins);
 
-            for (int i = 0; i < this.nLocalQCs; i++) {
-                this.localQC5s[i] = new LocalQC5();
+                for (int i = 0; i < bins * 2; i += 2)
+                    max = Math.max(max, values[i]);
+            }
+        } else if (this.blocks8 != null) {
+            for (int block = 0; block < this.blocks8.length && max <= 0xFFFF; block++) {
+                if (this.blocks16[block] != null)
+                    max = Math.max(max, 0x100);
+                else if (this.blocks32[block] != null) {
+                    int[] counters32 = this.blocks32[block];
+
+                    for (int i = 0; i < counters32.length; i += 2)
+                        max = Math.max(max, counters32[i]);
+                }
             }
         }
 
-        return this.localQC5s;
+        return max <= 0xFF ? 8 : max <= 0xFFFF ? 16 : 32;
     }
 
-    public int[][] getWiggles() {
-        int[][] wiggles = new int[this.nWiggles][2];
+    /**
+     * Difference mode: turns the counters into coverage by a prefix-sum pass, once all reads are added.
+     */
+    private void sumDifferences() {
+        if (! this.useDifferences || ! this.hasWiggles())
+            return;
+        else if (this.mappedWiggles != null)
+            this.mappedWiggles.sumDifferences();
+        else {
+            int sum = 0;
+            int uniqueSum = 0;
+
+            for (int block = 0; block < this.blocks32.length; block++) {
+                int[] counters32 = this.blocks32[block];
 
-        if (this.wiggles != null) {
-            for (int i = 0; i < this.nWiggles; i++) {
-                wiggles[i][0] = this.wiggles[i].getIntensity();
-                wiggles[i][1] = this.wiggles[i].getUniqueIntensity();
+                if (counters32 == null) {
+                    // Block without reads: it is only allocated if it is covered by reads of previous blocks
+                    if (sum == 0 && uniqueSum == 0)
+                        continue;
+
+                    counters32 = new int[this.getBlockBins(block) * 2];
+                    this.blocks32[block] = counters32;
+                }
+
+                for (int i = 0; i < counters32.length; i += 2) {
+                    sum += counters32[i];
+                    uniqueSum += counters32[i+1];
+                    counters32[i] = sum;
+                    counters32[i+1] = uniqueSum;
+                }
             }
         }
 
-        return wiggles;
+        // Counters now hold coverage: any later read must be added bin by bin
+        this.useDifferences = false;
     }
 
     public void destroy() {
         this.localQCs = null;
-        this.localQC5s = null;
-        this.wiggles = null;
+        this.blocks8 = null;
+        this.blocks16 = null;
+        this.blocks32 = null;
+
+        if (this.mappedWiggles != null) {
+            this.mappedWiggles.close();
+            this.mappedWiggles = null;
+        }
+    }
+
+    /**
+     * Uses the localQCs of another section of the same chromosome (same arrays, not a copy).
+     */
+    public void shareLocalQCs(Section section) {
+        this.localQCs = section.localQCs;
+    }
+
+    /**
+     * Upper bound of the heap used by the wiggle counters once allocated (every block promoted to int), in bytes.
+     */
+    public long estimateWiggleMemory() {
+        return this.useMappedWiggles ? 0 : this.nWiggles * 8L;
+    }
+
+    /**
+     * Upper bound of the heap used by the localQCs once loaded (every bin having a localQC), in bytes.
+     */
+    public long estimateLocalQCMemory(boolean useFiveReps) {
+        return (long) this.nLocalQCs * SparseLocalQCs.getBytesPerBin(useFiveReps);
     }
 
     public int getSize() {
@@ -124,4 +438,15 @@ public class Section {
     public int getWigSpan() {
         return wigSpan;
     }
+
+    /**
+     * Number of 500 bp localQC bins in the dense layout.
+     */
+    public int getNLocalQCs() {
+        return nLocalQCs;
+    }
+
+    public int getNWiggles() {
+        return nWiggles;
+    }
 }
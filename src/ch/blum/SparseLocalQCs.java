@@ -0,0 +1,182 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.util.Arrays;
+
+/**
+ * LocalQCs of a chromosome, stored sparsely: only the 500 bp bins having a localQC use memory.
+ * Columns (bin, intensity, dispersion, and flag in 5-replicates mode) are sorted by bin when read;
+ * if a bin is added several times, its last values are kept.
+ */
+public class SparseLocalQCs {
+    private final boolean hasFlags;
+    private int[] bins;
+    private int[] intensities;
+    private double[] dispersions;
+    private int[] flags;
+    private int n;
+
+    // True if bins were added in increasing order (no sort needed)
+    private boolean sorted;
+
+    public SparseLocalQCs(boolean hasFlags) {
+        this.hasFlags = hasFlags;
+        this.bins = new int[16];
+        this.intensities = new int[16];
+        this.dispersions = new double[16];
+        this.flags = hasFlags ? new int[16] : null;
+        this.n = 0;
+        this.sorted = true;
+    }
+
+    /**
+     * Columns already sorted by bin, without duplicate bins (flags is null in 3-replicates mode).
+     */
+    SparseLocalQCs(int[] bins, int[] intensities, double[] dispersions, int[] flags) {
+        this.hasFlags = flags != null;
+        this.bins = bins;
+        this.intensities = intensities;
+        this.dispersions = dispersions;
+        this.flags = flags;
+        this.n = bins.length;
+        this.sorted = true;
+    }
+
+    public void add(int bin, int intensity, double dispersion, int flag) {
+        if (this.n == this.bins.length) {
+            int capacity = this.n * 2;
+            this.bins = Arrays.copyOf(this.bins, capacity);
+            this.intensities = Arrays.copyOf(this.intensities, capacity);
+            this.dispersions = Arrays.copyOf(this.dispersions, capacity);
+
+            if (this.hasFlags)
+                this.flags = Arrays.copyOf(this.flags, capacity);
+        }
+
+        if (this.n > 0 && bin <= this.bins[this.n-1])
+            this.sorted = false;
+
+        this.bins[this.n] = bin;
+        this.intensities[this.n] = intensity;
+        this.dispersions[this.n] = dispersion;
+
+        if (this.hasFlags)
+            this.flags[this.n] = flag;
+
+        this.n++;
+    }
+
+    /**
+     * Sorts the columns by bin, keeping the last values added for each bin, and trims them.
+     */
+    private void compact() {
+        if (this.sorted) {
+            if (this.bins.length != this.n)
+                this.trim(null, this.n);
+
+            return;
+        }
+
+        // Stable sort: bin in the high bits, insertion order in the low bits
+        long[] keys = new long[this.n];
+        for (int i = 0; i < this.n; i++)
+            keys[i] = (long) this.bins[i] << 32 | i;
+        Arrays.sort(keys);
+
+        int[] order = new int[this.n];
+        int m = 0;
+
+        for (int i = 0; i < this.n; i++) {
+            if (i + 1 < this.n && keys[i+1] >>> 32 == keys[i] >>> 32)
+                continue;
+
+            order[m++] = (int) keys[i];
+        }
+
+        this.trim(order, m);
+        this.sorted = true;
+    }
+
+    /**
+     * Keeps the rows order[0..m) (or the first m rows if order is null), in this order.
+     */
+    private void trim(int[] order, int m) {
+        int[] bins = new int[m];
+        int[] intensities = new int[m];
+        double[] dispersions = new double[m];
+        int[] flags = this.hasFlags ? new int[m] : null;
+
+        for (int i = 0; i < m; i++) {
+            int j = order != null ? order[i] : i;
+            bins[i] = this.bins[j];
+            intensities[i] = this.intensities[j];
+            dispersions[i] = this.dispersions[j];
+
+            if (this.hasFlags)
+                flags[i] = this.flags[j];
+        }
+
+        this.bins = bins;
+        this.intensities = intensities;
+        this.dispersions = dispersions;
+        this.flags = flags;
+        this.n = m;
+    }
+
+    /**
+     * Number of bins having a localQC.
+     */
+    public int size() {
+        this.compact();
+        return this.n;
+    }
+
+    public boolean hasFlags() {
+        return this.hasFlags;
+    }
+
+    /**
+     * The columns below are sorted by bin and have size() elements; they are not copies.
+     */
+    public int[] getBins() {
+        this.compact();
+        return this.bins;
+    }
+
+    public int[] getIntensities() {
+        this.compact();
+        return this.intensities;
+    }
+
+    public double[] getDispersions() {
+        this.compact();
+        return this.dispersions;
+    }
+
+    /**
+     * Returns null in 3-replicates mode.
+     */
+    public int[] getFlags() {
+        this.compact();
+        return this.flags;
+    }
+
+    /**
+     * Returns the index of the first bin >= bin (size() if none).
+     */
+    public int indexOf(int bin) {
+        this.compact();
+        int i = Arrays.binarySearch(this.bins, 0, this.n, bin);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Heap used by each bin, in bytes.
+     */
+    public static int getBytesPerBin(boolean hasFlags) {
+        return hasFlags ? 20 : 16;
+    }
+}
@@ -0,0 +1,152 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import ch.systemsx.cisd.hdf5.HDF5FloatStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5GenericStorageFeatures;
+import ch.systemsx.cisd.hdf5.HDF5IntStorageFeatures;
+
+/**
+ * Chunk layout and compression of the HDF5 datasets.
+ * Defaults favour region reads: small chunks, fast deflate, shuffle filter.
+ */
+public class StorageOptions {
+    public enum Codec { NONE, DEFLATE, SCALEOFFSET }
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    public static final int DEFAULT_LEVEL = 1;
+
+    private final int chunkSize;
+    private final Codec codec;
+    private final int level;
+    private final boolean shuffle;
+    private boolean sparseLocalQCs;
+
+    public StorageOptions() {
+        this(DEFAULT_CHUNK_SIZE, Codec.DEFLATE, DEFAULT_LEVEL, true);
+    }
+
+    /**
+     * @param chunkSize number of rows per chunk
+     * @param codec     compression codec
+     * @param level     deflate level (0-9). With SCALEOFFSET, 0 disables deflate after scale-offset.
+     * @param shuffle   apply the shuffle filter before deflate (not after scale-offset, which already packs integers)
+     */
+    public StorageOptions(int chunkSize, Codec codec, int level, boolean shuffle) {
+        this.chunkSize = chunkSize;
+        this.codec = codec;
+        this.level = level;
+        this.shuffle = shuffle;
+        this.sparseLocalQCs = false;
+    }
+
+    /**
+     * If true, localQCs are written as columns holding only the bins having a localQC
+     * (bin, intensity, dispersion, flag) instead of one compound row per 500 bp bin.
+     */
+    public void setSparseLocalQCs(boolean sparseLocalQCs) {
+        this.sparseLocalQCs = sparseLocalQCs;
+    }
+
+    public boolean useSparseLocalQCs() {
+        return this.sparseLocalQCs;
+    }
+
+    /**
+     * Parses a codec specification: 'none', 'deflate[:LEVEL]', or 'scaleoffset[:LEVEL]'.
+     * Returns null if invalid.
+     */
+    public static StorageOptions parse(String spec, int chunkSize, boolean shuffle) {
+        String name = spec;
+        int level = DEFAULT_LEVEL;
+        int i = spec.indexOf(':');
+
+        if (i >= 0) {
+            name = spec.substring(0, i);
+
+            try {
+                level = Integer.parseInt(spec.substring(i + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (level < 0 || level > 9)
+                return null;
+        }
+
+        switch (name.toLowerCase()) {
+            case "none":
+                return i < 0 ? new StorageOptions(chunkSize, Codec.NONE, 0, shuffle) : null;
+            case "deflate":
+                return new StorageOptions(chunkSize, Codec.DEFLATE, level, shuffle);
+            case "scaleoffset":
+                return new StorageOptions(chunkSize, Codec.SCALEOFFSET, i < 0 ? 0 : level, shuffle);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the chunk size for a dataset of the given number of rows (chunks cannot exceed fixed-size datasets).
+     */
+    public int getChunkSize(long rows) {
+        return (int) Math.max(1, Math.min(this.chunkSize, rows));
+    }
+
+    public HDF5IntStorageFeatures getIntFeatures() {
+        switch (this.codec) {
+            case NONE:
+                return HDF5IntStorageFeatures.INT_NO_COMPRESSION;
+            case SCALEOFFSET:
+                if (this.level > 0)
+                    return HDF5IntStorageFeatures.build().scalingFactor((byte) 0).deflateLevel((byte) this.level).features();
+                else
+                    return HDF5IntStorageFeatures.INT_AUTO_SCALING;
+            default:
+                if (this.shuffle)
+                    return HDF5IntStorageFeatures.build().deflateLevel((byte) this.level).shuffleBeforeDeflate().features();
+                else
+                    return HDF5IntStorageFeatures.createDeflation(this.level);
+        }
+    }
+
+    /**
+     * Deflate level of the datasets scale-offset does not apply to: the given level, or the default one
+     * for SCALEOFFSET without deflate (these datasets would not be compressed at all).
+     */
+    private int getDeflateLevel() {
+        return this.codec == Codec.SCALEOFFSET && this.level == 0 ? DEFAULT_LEVEL : this.level;
+    }
+
+    /**
+     * Features for compound datasets (localQCs). Scale-offset does not apply to compounds: deflate is used instead.
+     */
+    public HDF5GenericStorageFeatures getGenericFeatures() {
+        if (this.codec == Codec.NONE)
+            return HDF5GenericStorageFeatures.GENERIC_NO_COMPRESSION;
+
+        int level = this.getDeflateLevel();
+
+        if (this.shuffle)
+            return HDF5GenericStorageFeatures.build().deflateLevel((byte) level).shuffleBeforeDeflate().features();
+        else
+            return HDF5GenericStorageFeatures.createDeflation(level);
+    }
+
+    /**
+     * Features for floating-point datasets. Scale-offset would be lossy: deflate is used instead.
+     */
+    public HDF5FloatStorageFeatures getFloatFeatures() {
+        if (this.codec == Codec.NONE)
+            return HDF5FloatStorageFeatures.FLOAT_NO_COMPRESSION;
+
+        int level = this.getDeflateLevel();
+
+        if (this.shuffle)
+            return HDF5FloatStorageFeatures.build().deflateLevel((byte) level).shuffleBeforeDeflate().features();
+        else
+            return HDF5FloatStorageFeatures.createDeflation(level);
+    }
+}
@@ -0,0 +1,306 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.SplittableRandom;
+
+/**
+ * 'generate' subcommand: writes a synthetic dataset (chromosome sizes, BED sorted by chromosome and position,
+ * NGS-QC table) for benchmarking. The same seed and options always produce the same files.
+ */
+public class SyntheticGenerator {
+    private static final int LOCALQC_SPAN = 500;
+    private static final int[] PERCENTS = {90, 70, 50};
+
+    private final long nReads;
+    private final int nChroms;
+    private final long genomeSize;
+    private final int readLength;
+    private final double dupRate;
+    private final boolean useFiveReps;
+    private final SplittableRandom random;
+
+    // Number of reads written so far (read names are r0, r1, ...)
+    private long readIndex;
+
+    // Output line
+    private final byte[] line = new byte[256];
+    private int lineLength;
+
+    public SyntheticGenerator(long nReads, int nChroms, long genomeSize, int readLength, double dupRate, boolean useFiveReps, long seed) {
+        this.nReads = nReads;
+        this.nChroms = nChroms;
+        this.genomeSize = genomeSize;
+        this.readLength = readLength;
+        this.dupRate = dupRate;
+        this.useFiveReps = useFiveReps;
+        this.random = new SplittableRandom(seed);
+    }
+
+    private static void showHelp() {
+        System.out.println("\nUsage: java -jar h5ngsqc.jar generate OUTDIR [options]");
+        System.out.format("    %-15sdirectory where chrom.sizes, reads.bed and table.txt are written\n\n", "OUTDIR");
+        System.out.format("Options: --reads INT         number of reads (default: 10000000).\n");
+        System.out.format("         --chroms INT        number of chromosomes (default: 24).\n");
+        System.out.format("         --genome-size INT   genome size in bp (default: 3100000000).\n");
+        System.out.format("         --read-length INT   read length in bp (default: 50).\n");
+        System.out.format("         --dup-rate FLOAT    fraction of PCR duplicates (default: 0.1).\n");
+        System.out.format("         --seed INT          random seed (default: 42).\n");
+        System.out.format("         -5                  write a '5-replicates' table.\n");
+    }
+
+    public static void run(String[] args) {
+        File outDir = null;
+        long nReads = 10000000L;
+        int nChroms = 24;
+        long genomeSize = 3100000000L;
+        int readLength = 50;
+        double dupRate = 0.1;
+        long seed = 42;
+        boolean useFiveReps = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if (arg.equals("-h") || arg.equals("--help")) {
+                showHelp();
+                System.exit(0);
+            } else if (arg.equals("-5")) {
+                useFiveReps = true;
+            } else if (arg.equals("--reads") || arg.equals("--chroms") || arg.equals("--genome-size")
+                    || arg.equals("--read-length") || arg.equals("--dup-rate") || arg.equals("--seed")) {
+                if (i + 1 == args.length) {
+                    System.err.format("option '%s' requires an argument\n", arg);
+                    System.exit(1);
+                }
+
+                String value = args[++i];
+
+                try {
+                    switch (arg) {
+                        case "--reads":
+                            nReads = Long.parseLong(value);
+                            break;
+                        case "--chroms":
+                            nChroms = Integer.parseInt(value);
+                            break;
+                        case "--genome-size":
+                            genomeSize = Long.parseLong(value);
+                            break;
+                        case "--read-length":
+                            readLength = Integer.parseInt(value);
+                            break;
+                        case "--dup-rate":
+                            dupRate = Double.parseDouble(value);
+                            break;
+                        default:
+                            seed = Long.parseLong(value);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.format("option '%s': invalid value %s\n", arg, value);
+                    System.exit(1);
+                }
+            } else if (arg.charAt(0) == '-') {
+                System.err.format("invalid option '%s'\n", arg);
+                System.exit(1);
+            } else if (outDir == null) {
+                outDir = new File(arg);
+            } else {
+                System.err.format("unexpected argument '%s'\n", arg);
+                System.exit(1);
+            }
+        }
+
+        if (outDir == null) {
+            System.err.println("Missing arguments. Type --help to display help message.");
+            System.exit(1);
+        } else if (nReads < 0 || nChroms <= 0 || readLength <= 0 || dupRate < 0 || dupRate >= 1) {
+            System.err.println("invalid generator options");
+            System.exit(1);
+        } else if (genomeSize / nChroms < readLength || genomeSize / nChroms * 2 > Integer.MAX_VALUE) {
+            System.err.format("genome size must be between %d and %d for %d chromosomes\n",
+                    (long) readLength * nChroms, (long) Integer.MAX_VALUE / 2 * nChroms, nChroms);
+            System.exit(1);
+        } else if (! outDir.isDirectory() && ! outDir.mkdirs()) {
+            System.err.format("%s: cannot create directory\n", outDir.getPath());
+            System.exit(1);
+        }
+
+        try {
+            new SyntheticGenerator(nReads, nChroms, genomeSize, readLength, dupRate, useFiveReps, seed).write(outDir);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Chromosome sizes decrease linearly, from about twice to about half of the mean size.
+     */
+    public int[] getChromSizes() {
+        int[] sizes = new int[this.nChroms];
+        double totalWeight = 0;
+
+        for (int i = 0; i < this.nChroms; i++)
+            totalWeight += 4 * this.nChroms - 3 * i;
+
+        long remaining = this.genomeSize;
+        for (int i = 0; i < this.nChroms - 1; i++) {
+            sizes[i] = (int) (this.genomeSize * (4 * this.nChroms - 3 * i) / totalWeight);
+            remaining -= sizes[i];
+        }
+
+        sizes[this.nChroms - 1] = (int) remaining;
+        return sizes;
+    }
+
+    public void write(File outDir) throws IOException {
+        int[] sizes = this.getChromSizes();
+
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(new File(outDir, "chrom.sizes")))) {
+            for (int i = 0; i < this.nChroms; i++) {
+                this.lineLength = 0;
+                this.append("chr" + (i + 1)).append('\t').append(sizes[i]).append('\n');
+                os.write(this.line, 0, this.lineLength);
+            }
+        }
+
+        try (OutputStream bed = new BufferedOutputStream(new FileOutputStream(new File(outDir, "reads.bed")), 1 << 20);
+             OutputStream table = new BufferedOutputStream(new FileOutputStream(new File(outDir, "table.txt")), 1 << 20)) {
+            long remaining = this.nReads;
+
+            for (int i = 0; i < this.nChroms; i++) {
+                long n = i < this.nChroms - 1 ? Math.round((double) this.nReads * sizes[i] / this.genomeSize) : remaining;
+                n = Math.min(n, remaining);
+                remaining -= n;
+
+                int[] counts = this.writeReads(bed, "chr" + (i + 1), sizes[i], n);
+                this.writeTable(table, "chr" + (i + 1), sizes[i], counts);
+            }
+        }
+    }
+
+    /**
+     * Writes n reads with sorted, uniformly distributed start positions; returns the number of reads per 500 bp bin.
+     * A read is a duplicate of the previous one (same start and strand) with probability dupRate.
+     */
+    private int[] writeReads(OutputStream os, String chrom, int size, long n) throws IOException {
+        int[] counts = new int[(size + LOCALQC_SPAN - 1) / LOCALQC_SPAN];
+        int maxStart = size - this.readLength;
+        byte[] name = chrom.getBytes();
+
+        // Sorted uniform variables, drawn sequentially (each is the minimum of the remaining ones)
+        double x = 0;
+        int start = 0;
+        boolean isFwRead = true;
+
+        for (long k = 0; k < n; k++) {
+            if (k == 0 || this.random.nextDouble() >= this.dupRate) {
+                x += (1 - x) * (1 - Math.pow(this.random.nextDouble(), 1. / (n - k)));
+                start = (int) Math.min(x * (maxStart + 1), maxStart);
+                isFwRead = this.random.nextBoolean();
+            }
+
+            counts[start / LOCALQC_SPAN]++;
+
+            // chr1	17	67	r1	0	+
+            this.lineLength = 0;
+            this.append(name).append('\t').append(start).append('\t').append(start + this.readLength)
+                    .append("\tr").append(this.readIndex++).append("\t0\t").append(isFwRead ? '+' : '-').append('\n');
+            os.write(this.line, 0, this.lineLength);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Writes the bins having at least one read; sampled intensities are binomial draws.
+     */
+    private void writeTable(OutputStream os, String chrom, int size, int[] counts) throws IOException {
+        byte[] name = chrom.getBytes();
+        int nReps = this.useFiveReps ? 5 : 1;
+
+        for (int bin = 0; bin < counts.length; bin++) {
+            int intensity = counts[bin];
+
+            if (intensity == 0)
+                continue;
+
+            this.lineLength = 0;
+            this.append(name).append('\t').append(bin * LOCALQC_SPAN).append('\t')
+                    .append(Math.min((bin + 1) * LOCALQC_SPAN, size)).append('\t').append(intensity);
+
+            for (int percent: PERCENTS) {
+                for (int i = 0; i < nReps; i++)
+                    this.append('\t').append(this.binomial(intensity, percent / 100.));
+            }
+
+            this.append('\n');
+            os.write(this.line, 0, this.lineLength);
+        }
+    }
+
+    /**
+     * Binomial draw; normal approximation for large n.
+     */
+    private int binomial(int n, double p) {
+        if (n > 100) {
+            double value = n * p + Math.sqrt(n * p * (1 - p)) * this.gaussian();
+            return (int) Math.max(0, Math.min(n, Math.round(value)));
+        }
+
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (this.random.nextDouble() < p)
+                k++;
+        }
+
+        return k;
+    }
+
+    private double gaussian() {
+        // Box-Muller
+        return Math.sqrt(-2 * Math.log(1 - this.random.nextDouble())) * Math.cos(2 * Math.PI * this.random.nextDouble());
+    }
+
+    private SyntheticGenerator append(byte[] bytes) {
+        System.arraycopy(bytes, 0, this.line, this.lineLength, bytes.length);
+        this.lineLength += bytes.length;
+        return this;
+    }
+
+    private SyntheticGenerator append(String s) {
+        for (int i = 0; i < s.length(); i++)
+            this.line[this.lineLength++] = (byte) s.charAt(i);
+        return this;
+    }
+
+    private SyntheticGenerator append(char c) {
+        this.line[this.lineLength++] = (byte) c;
+        return this;
+    }
+
+    private SyntheticGenerator append(long value) {
+        if (value == 0) {
+            this.line[this.lineLength++] = '0';
+            return this;
+        }
+
+        int end = this.lineLength;
+        for (long v = value; v > 0; v /= 10)
+            end++;
+
+        for (int i = end - 1; value > 0; i--, value /= 10)
+            this.line[i] = (byte) ('0' + value % 10);
+
+        this.lineLength = end;
+        return this;
+    }
+}
@@ -0,0 +1,251 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads tab-separated lines from a byte stream without decoding them to Strings.
+ * Lines are kept in a reusable buffer and columns are located in place;
+ * columns are split as String.trim().split("\t") would do.
+ */
+public class TabLineReader {
+    private final InputStream in;
+    private byte[] buffer;
+    private int limit;
+    private int lineStart;
+    private int lineEnd;
+    private int nextLine;
+    private int[] colStarts;
+    private int[] colEnds;
+    private int nCols;
+    private boolean eof;
+
+    public TabLineReader(InputStream in) {
+        this(in, 1 << 16);
+    }
+
+    public TabLineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+        this.limit = 0;
+        this.lineStart = 0;
+        this.lineEnd = 0;
+        this.nextLine = 0;
+        this.colStarts = new int[32];
+        this.colEnds = new int[32];
+        this.nCols = 0;
+        this.eof = false;
+    }
+
+    /**
+     * Moves to the next line. Returns false at the end of the stream.
+     */
+    public boolean next() throws IOException {
+        int pos = this.nextLine;
+
+        while (true) {
+            while (pos < this.limit && this.buffer[pos] != '\n')
+                pos++;
+
+            if (pos < this.limit)
+                break;
+            else if (this.eof) {
+                if (this.nextLine == this.limit)
+                    return false;
+                break;
+            }
+
+            // Not a complete line in the buffer: compact, grow if needed, and read more
+            int offset = pos - this.nextLine;
+            if (this.nextLine > 0) {
+                System.arraycopy(this.buffer, this.nextLine, this.buffer, 0, this.limit - this.nextLine);
+                this.limit -= this.nextLine;
+                this.nextLine = 0;
+            } else if (this.limit == this.buffer.length) {
+                byte[] newBuffer = new byte[this.buffer.length * 2];
+                System.arraycopy(this.buffer, 0, newBuffer, 0, this.limit);
+                this.buffer = newBuffer;
+            }
+
+            int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (n < 0)
+                this.eof = true;
+            else
+                this.limit += n;
+
+            pos = offset;
+        }
+
+        this.lineStart = this.nextLine;
+        this.lineEnd = pos;
+        this.nextLine = pos < this.limit ? pos + 1 : pos;
+
+        if (this.lineEnd > this.lineStart && this.buffer[this.lineEnd - 1] == '\r')
+            this.lineEnd--;
+
+        this.split();
+        return true;
+    }
+
+    private void split() {
+        int start = this.lineStart;
+        int end = this.lineEnd;
+
+        while (start < end && (this.buffer[start] & 0xff) <= ' ')
+            start++;
+        while (end > start && (this.buffer[end - 1] & 0xff) <= ' ')
+            end--;
+
+        this.nCols = 0;
+
+        if (start == end)
+            return;
+
+        int colStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || this.buffer[i] == '\t') {
+                if (this.nCols == this.colStarts.length) {
+                    int[] newStarts = new int[this.nCols * 2];
+                    int[] newEnds = new int[this.nCols * 2];
+                    System.arraycopy(this.colStarts, 0, newStarts, 0, this.nCols);
+                    System.arraycopy(this.colEnds, 0, newEnds, 0, this.nCols);
+                    this.colStarts = newStarts;
+                    this.colEnds = newEnds;
+                }
+
+                this.colStarts[this.nCols] = colStart;
+                this.colEnds[this.nCols] = i;
+                this.nCols++;
+                colStart = i + 1;
+            }
+        }
+
+        // Like String.split(), drop trailing empty columns
+        while (this.nCols > 0 && this.colStarts[this.nCols - 1] == this.colEnds[this.nCols - 1])
+            this.nCols--;
+    }
+
+    public boolean isEmpty() {
+        return this.nCols == 0;
+    }
+
+    public int getColumnCount() {
+        return this.nCols;
+    }
+
+    /**
+     * Returns the first byte of the (untrimmed) line, or -1 if the line is empty.
+     */
+    public int firstByte() {
+        return this.lineEnd > this.lineStart ? this.buffer[this.lineStart] : -1;
+    }
+
+    /**
+     * Tests if the (untrimmed) line starts with the given lower-case ASCII prefix, ignoring case.
+     */
+    public boolean startsWithIgnoreCase(String prefix) {
+        if (this.lineEnd - this.lineStart < prefix.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); i++) {
+            int b = this.buffer[this.lineStart + i];
+
+            if (b >= 'A' && b <= 'Z')
+                b += 'a' - 'A';
+
+            if (b != prefix.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    public int getColumnStart(int col) {
+        if (col >= this.nCols)
+            throw new ArrayIndexOutOfBoundsException(col);
+        return this.colStarts[col];
+    }
+
+    public int getColumnLength(int col) {
+        if (col >= this.nCols)
+            throw new ArrayIndexOutOfBoundsException(col);
+        return this.colEnds[col] - this.colStarts[col];
+    }
+
+    public byte getColumnByte(int col) {
+        if (col >= this.nCols || this.colEnds[col] == this.colStarts[col])
+            throw new ArrayIndexOutOfBoundsException(col);
+        return this.buffer[this.colStarts[col]];
+    }
+
+    public boolean columnEquals(int col, byte[] bytes) {
+        int start = this.getColumnStart(col);
+
+        if (this.colEnds[col] - start != bytes.length)
+            return false;
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (this.buffer[start + i] != bytes[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Decodes a column to a String. Allocates: not meant for the hot path.
+     */
+    public String getColumn(int col) {
+        return new String(this.buffer, this.getColumnStart(col), this.getColumnLength(col), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses a column as Integer.parseInt() would, without allocating.
+     */
+    public int parseInt(int col) {
+        return parseInt(this.buffer, this.getColumnStart(col), this.colEnds[col]);
+    }
+
+    public static int parseInt(byte[] bytes, int start, int end) {
+        if (start == end)
+            throw new NumberFormatException();
+
+        boolean negative = false;
+        if (bytes[start] == '-' || bytes[start] == '+') {
+            negative = bytes[start] == '-';
+
+            if (++start == end)
+                throw new NumberFormatException();
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = bytes[i] - '0';
+
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException();
+
+            value = value * 10 + digit;
+
+            if (value > (long) Integer.MAX_VALUE + 1)
+                throw new NumberFormatException();
+        }
+
+        if (negative)
+            value = -value;
+
+        if (value > Integer.MAX_VALUE)
+            throw new NumberFormatException();
+
+        return (int) value;
+    }
+}
@@ -0,0 +1,140 @@
+package ch.blum;
+
+/**
+ * @author  Matthias Blum <mat.blum@gmail.com>
+ */
+
+import java.util.Arrays;
+
+/**
+ * Wiggles aggregated over larger bins (like bigWig zoom levels), so that whole-chromosome
+ * views do not need to read the full-resolution wiggles.
+ * Each zoom bin holds, for the intensity and the intensity without PCR duplicates,
+ * the sum, the max, and the mean over the wiggle bins it covers.
+ */
+public class ZoomLevel {
+    public static final int[] DEFAULT_SPANS = {500, 5000, 50000, 500000};
+
+    private final int span;
+    private final int factor;
+    private final int nWiggles;
+    private final int nBins;
+    private final long[] sums;
+    private final int[] maxs;
+    private final float[] means;
+
+    /**
+     * Creates an empty zoom level of factor wiggle bins per zoom bin. Wiggles are added
+     * block by block with add(), then finish() computes the means.
+     */
+    public ZoomLevel(int nWiggles, int wigSpan, int factor) {
+        this.span = wigSpan * factor;
+        this.factor = factor;
+        this.nWiggles = nWiggles;
+        this.nBins = (nWiggles + factor - 1) / factor;
+        this.sums = new long[this.nBins * 2];
+        this.maxs = new int[this.nBins * 2];
+        this.means = new float[this.nBins * 2];
+    }
+
+    /**
+     * Aggregates interleaved wiggle counters (intensity, unique intensity), factor wiggle bins per zoom bin.
+     */
+    public static ZoomLevel aggregate(int[] wiggles, int nWiggles, int wigSpan, int factor) {
+        ZoomLevel zoom = new ZoomLevel(nWiggles, wigSpan, factor);
+        zoom.add(wiggles, 0, nWiggles);
+        zoom.finish();
+        return zoom;
+    }
+
+    /**
+     * Adds the interleaved counters of the wiggle bins firstRow to firstRow + rows - 1.
+     */
+    public void add(int[] wiggles, int firstRow, int rows) {
+        for (int i = 0; i < rows; ) {
+            int bin = (firstRow + i) / this.factor;
+            int last = Math.min((bin + 1) * this.factor - firstRow, rows);
+            long sum = 0;
+            long uniqueSum = 0;
+            int max = this.maxs[bin*2];
+            int uniqueMax = this.maxs[bin*2+1];
+
+            for (; i < last; i++) {
+                int value = wiggles[i*2];
+                int uniqueValue = wiggles[i*2+1];
+                sum += value;
+                uniqueSum += uniqueValue;
+
+                if (value > max)
+                    max = value;
+                if (uniqueValue > uniqueMax)
+                    uniqueMax = uniqueValue;
+            }
+
+            this.sums[bin*2] += sum;
+            this.sums[bin*2+1] += uniqueSum;
+            this.maxs[bin*2] = max;
+            this.maxs[bin*2+1] = uniqueMax;
+        }
+    }
+
+    /**
+     * Computes the means, once all wiggles are added.
+     */
+    public void finish() {
+        for (int i = 0; i < this.nBins; i++) {
+            int first = i * this.factor;
+            int last = Math.min(first + this.factor, this.nWiggles);
+            this.means[i*2] = (float) this.sums[i*2] / (last - first);
+            this.means[i*2+1] = (float) this.sums[i*2+1] / (last - first);
+        }
+    }
+
+    /**
+     * Returns the aggregation factors (number of wiggle bins per zoom bin) for the requested zoom spans.
+     * Spans are rounded to a multiple of the wiggle span; spans not larger than the wiggle span,
+     * or rounding to an already selected factor, are dropped.
+     */
+    public static int[] getFactors(int[] zoomSpans, int wigSpan) {
+        int[] factors = new int[zoomSpans.length];
+        int n = 0;
+
+        for (int zoomSpan: zoomSpans) {
+            int factor = Math.round((float) zoomSpan / wigSpan);
+
+            if (factor < 2)
+                continue;
+
+            boolean duplicate = false;
+            for (int i = 0; i < n; i++)
+                duplicate |= factors[i] == factor;
+
+            if (! duplicate)
+                factors[n++] = factor;
+        }
+
+        factors = Arrays.copyOf(factors, n);
+        Arrays.sort(factors);
+        return factors;
+    }
+
+    public int getSpan() {
+        return span;
+    }
+
+    public int getNBins() {
+        return nBins;
+    }
+
+    public long[] getSums() {
+        return sums;
+    }
+
+    public int[] getMaxs() {
+        return maxs;
+    }
+
+    public float[] getMeans() {
+        return means;
+    }
+}